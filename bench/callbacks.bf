@@ -0,0 +1,55 @@
+# Walks a 10,000 element list with non-tail recursion, passing a new
+# callback that captures nothing at each level.
+# skip-trace
+# expect: x
+
+fn cons(head, tail) {
+  fn(select) {
+    if select {
+      head
+    } else {
+      tail
+    }
+  }
+}
+
+fn nil(select) {
+  ""
+}
+
+fn ten(tail) {
+  cons("x", cons("x", cons("x", cons("x", cons("x",
+      cons("x", cons("x", cons("x", cons("x", cons("x", tail))))))))))
+}
+
+fn times-ten(f, tail) {
+  f(f(f(f(f(f(f(f(f(f(tail))))))))))
+}
+
+fn hundred(tail) {
+  times-ten(ten, tail)
+}
+
+fn thousand(tail) {
+  times-ten(hundred, tail)
+}
+
+fn walk(list, callback) {
+  var here = list("head")
+  if here {
+    # Use a variable so that this isn't a tail call.
+    var result = walk(list(""), fn(value) {
+      value
+    })
+    result
+  } else {
+    callback("x")
+  }
+}
+
+fn main() {
+  var list = times-ten(thousand, nil)
+  walk(list, fn(value) {
+    "empty"
+  })
+}
@@ -0,0 +1,56 @@
+# Walks a 10,000 element list with non-tail recursion, creating a closure
+# over a local at each level. All of those upvars stay open until the
+# recursion unwinds.
+# skip-trace
+# expect: x
+
+fn cons(head, tail) {
+  fn(select) {
+    if select {
+      head
+    } else {
+      tail
+    }
+  }
+}
+
+fn nil(select) {
+  ""
+}
+
+fn ten(tail) {
+  cons("x", cons("x", cons("x", cons("x", cons("x",
+      cons("x", cons("x", cons("x", cons("x", cons("x", tail))))))))))
+}
+
+fn times-ten(f, tail) {
+  f(f(f(f(f(f(f(f(f(f(tail))))))))))
+}
+
+fn hundred(tail) {
+  times-ten(ten, tail)
+}
+
+fn thousand(tail) {
+  times-ten(hundred, tail)
+}
+
+fn walk(list, last) {
+  var here = list("head")
+  if here {
+    # Use a variable so that this isn't a tail call.
+    var result = walk(list(""), fn() {
+      here
+    })
+    result
+  } else {
+    last()
+  }
+}
+
+fn main() {
+  var list = times-ten(thousand, nil)
+  walk(list, fn() {
+    "empty"
+  })
+}
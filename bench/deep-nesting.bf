@@ -0,0 +1,58 @@
+# Creates closures four functions deep that each use variables from the
+# outermost one. With flat upvars, every level copies those variables down
+# into its own closure. With linked environments, each level only links to
+# the one around it.
+# skip-trace
+# expect: d
+
+fn build(a, b, c, d) {
+  var one = fn() {
+    var two = fn() {
+      var three = fn() {
+        var four = fn(select) {
+          if select {
+            a
+          } else {
+            if b {
+              c
+            } else {
+              d
+            }
+          }
+        }
+        four("")
+      }
+      three()
+    }
+    two()
+  }
+  one()
+}
+
+fn helper(value) {
+  build("", "", "c", "d")
+}
+
+fn times-ten(f, value) {
+  f(f(f(f(f(f(f(f(f(f(value))))))))))
+}
+
+fn ten(value) {
+  times-ten(helper, value)
+}
+
+fn hundred(value) {
+  times-ten(ten, value)
+}
+
+fn thousand(value) {
+  times-ten(hundred, value)
+}
+
+fn ten-thousand(value) {
+  times-ten(thousand, value)
+}
+
+fn main() {
+  times-ten(ten-thousand, "x")
+}
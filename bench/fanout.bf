@@ -0,0 +1,61 @@
+# Makes lots of calls to small functions from a shallow call stack.
+# expect: done
+
+fn leaf(a, b) {
+  b
+}
+
+fn branch(a) {
+  leaf(a, leaf(a, a))
+  leaf(a, a)
+  leaf(leaf(a, a), a)
+  leaf(a, a)
+}
+
+fn fan(a) {
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+  branch(a)
+}
+
+fn wide(a) {
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+  fan(a)
+}
+
+fn wider(a) {
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+  wide(a)
+}
+
+fn main() {
+  wider("x")
+  wider("x")
+  wider("x")
+  wider("x")
+  wider("x")
+  "done"
+}
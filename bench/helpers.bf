@@ -0,0 +1,83 @@
+# Makes lots of calls to tiny helpers that return a constant or forward to
+# another function, the kind that inlining removes entirely.
+# expect: on
+
+fn enabled() {
+  "yes"
+}
+
+fn disabled() {
+  ""
+}
+
+fn pick(a, b) {
+  if enabled() {
+    a
+  } else {
+    b
+  }
+}
+
+fn choose(a, b) {
+  pick(a, b)
+}
+
+fn check(a) {
+  if disabled() {
+    "off"
+  } else {
+    choose(a, "off")
+  }
+}
+
+fn level1(a) {
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+  check(a)
+}
+
+fn level2(a) {
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+  level1(a)
+}
+
+fn level3(a) {
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+  level2(a)
+}
+
+fn main() {
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+  level3("on")
+}
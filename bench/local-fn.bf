@@ -0,0 +1,45 @@
+# Calls a function 100,000 times that defines local helper functions over its
+# variables and only calls them directly. With escape analysis, none of those
+# need a closure or upvars.
+# skip-trace
+# expect: x
+
+fn helper(a) {
+  var b = "b"
+  var pick = fn(select) {
+    if select {
+      b
+    } else {
+      a
+    }
+  }
+  var swap = fn() {
+    b = a
+  }
+  swap()
+  pick("")
+}
+
+fn times-ten(f, value) {
+  f(f(f(f(f(f(f(f(f(f(value))))))))))
+}
+
+fn ten(value) {
+  times-ten(helper, value)
+}
+
+fn hundred(value) {
+  times-ten(ten, value)
+}
+
+fn thousand(value) {
+  times-ten(hundred, value)
+}
+
+fn ten-thousand(value) {
+  times-ten(thousand, value)
+}
+
+fn main() {
+  times-ten(ten-thousand, "x")
+}
@@ -0,0 +1,51 @@
+# Builds a 10,000 element list out of closures and then walks it with
+# non-tail recursion. The stack gets too deep to trace every op in a
+# reasonable amount of time.
+# skip-trace
+# expect: done
+
+fn cons(head, tail) {
+  fn(select) {
+    if select {
+      head
+    } else {
+      tail
+    }
+  }
+}
+
+fn nil(select) {
+  ""
+}
+
+fn ten(tail) {
+  cons("x", cons("x", cons("x", cons("x", cons("x",
+      cons("x", cons("x", cons("x", cons("x", cons("x", tail))))))))))
+}
+
+fn times-ten(f, tail) {
+  f(f(f(f(f(f(f(f(f(f(tail))))))))))
+}
+
+fn hundred(tail) {
+  times-ten(ten, tail)
+}
+
+fn thousand(tail) {
+  times-ten(hundred, tail)
+}
+
+fn walk(list) {
+  if list("head") {
+    # Use a variable so that this isn't a tail call.
+    var result = walk(list(""))
+    result
+  } else {
+    "done"
+  }
+}
+
+fn main() {
+  var list = times-ten(thousand, nil)
+  walk(list)
+}
@@ -0,0 +1,48 @@
+# Creates closures directly over the variables of the function around them
+# and reads them often. Flat upvars are one hop away, while linked
+# environments also have to allocate an environment for each call.
+# skip-trace
+# expect: b
+
+fn build(a, b) {
+  var get = fn(select) {
+    if select {
+      a
+    } else {
+      b
+    }
+  }
+  get("")
+  get("")
+  get("")
+  get("")
+  get("")
+}
+
+fn helper(value) {
+  build("a", "b")
+}
+
+fn times-ten(f, value) {
+  f(f(f(f(f(f(f(f(f(f(value))))))))))
+}
+
+fn ten(value) {
+  times-ten(helper, value)
+}
+
+fn hundred(value) {
+  times-ten(ten, value)
+}
+
+fn thousand(value) {
+  times-ten(hundred, value)
+}
+
+fn ten-thousand(value) {
+  times-ten(thousand, value)
+}
+
+fn main() {
+  times-ten(ten-thousand, "x")
+}
@@ -0,0 +1,63 @@
+# Nests calls ten deep through a function that declares lots of locals that
+# are each only used by the next one. Sharing registers between them keeps
+# every frame small.
+# skip-trace
+# expect: x
+
+fn id(value) {
+  value
+}
+
+fn step(value, rest) {
+  var a = id(value)
+  var b = id(a)
+  var c = id(b)
+  var d = id(c)
+  var e = id(d)
+  var f = id(e)
+  var g = id(f)
+  var h = id(g)
+  var i = id(h)
+  var j = id(i)
+  # Use a variable so that this isn't a tail call.
+  var result = rest(j)
+  result
+}
+
+fn times-ten(f, value) {
+  f(f(f(f(f(f(f(f(f(f(value))))))))))
+}
+
+fn ten(value) {
+  step(value, fn(next) {
+    step(next, fn(next) {
+      step(next, fn(next) {
+        step(next, fn(next) {
+          step(next, fn(next) {
+            step(next, fn(next) {
+              step(next, fn(next) {
+                step(next, fn(next) {
+                  step(next, fn(next) {
+                    step(next, id)
+                  })
+                })
+              })
+            })
+          })
+        })
+      })
+    })
+  })
+}
+
+fn hundred(value) {
+  times-ten(ten, value)
+}
+
+fn thousand(value) {
+  times-ten(hundred, value)
+}
+
+fn main() {
+  times-ten(thousand, "x")
+}
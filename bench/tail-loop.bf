@@ -0,0 +1,52 @@
+# Builds a 100,000 element list out of closures and then loops over it with
+# tail recursion, which runs in constant stack space.
+# skip-trace
+# expect: done
+
+fn cons(head, tail) {
+  fn(select) {
+    if select {
+      head
+    } else {
+      tail
+    }
+  }
+}
+
+fn nil(select) {
+  ""
+}
+
+fn ten(tail) {
+  cons("x", cons("x", cons("x", cons("x", cons("x",
+      cons("x", cons("x", cons("x", cons("x", cons("x", tail))))))))))
+}
+
+fn times-ten(f, tail) {
+  f(f(f(f(f(f(f(f(f(f(tail))))))))))
+}
+
+fn hundred(tail) {
+  times-ten(ten, tail)
+}
+
+fn thousand(tail) {
+  times-ten(hundred, tail)
+}
+
+fn ten-thousand(tail) {
+  times-ten(thousand, tail)
+}
+
+fn loop(list) {
+  if list("head") {
+    loop(list(""))
+  } else {
+    "done"
+  }
+}
+
+fn main() {
+  var list = times-ten(ten-thousand, nil)
+  loop(list)
+}
@@ -0,0 +1,371 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs each script in the "bench" directory repeatedly and reports the
+ * average time per run. Like the tests, each script has an "# expect:"
+ * comment that its result is checked against. Scripts containing
+ * "# skip-trace" are too slow to run with a StackTracer attached. Before
+ * that, it times lexing and parsing a large program made by repeating the
+ * scripts.
+ */
+public class Benchmark {
+  public static void main(String[] args) throws IOException {
+    new Benchmark().runAll();
+  }
+
+  private void runAll() throws IOException {
+    reportClosureLayout();
+
+    File benchDir = new File("bench");
+    String largeSource = createLargeSource(benchDir);
+    reportLexing(largeSource);
+    reportParsing(largeSource);
+
+    for (File script : benchDir.listFiles()) {
+      if (script.getPath().endsWith(".bf")) {
+        run(script.getPath());
+      }
+    }
+  }
+
+  private void run(String path) throws IOException {
+    System.out.println(path);
+
+    BulfinchScript script = new BulfinchScript(path);
+    String code = script.getSource().toString();
+
+    Matcher m = mExpectPattern.matcher(code);
+    m.find();
+    String expect = m.group(1);
+
+    Program program = Bulfinch.compile(code);
+    reportRegisters(program, code);
+
+    double untraced = time(program, null, expect);
+    report("untraced", untraced, untraced);
+    reportAllocation(program, expect);
+
+    // See what the closures that escape analysis removes were costing.
+    Program escaping = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setEscapeAnalysisEnabled(false));
+    report("no escape analysis", time(escaping, null, expect), untraced);
+    reportAllocation(escaping, expect);
+
+    // See what calling the small functions that get inlined was costing.
+    Program calling = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setInliningEnabled(false));
+    report("no inlining", time(calling, null, expect), untraced);
+
+    Program lifted = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setLambdaLiftingEnabled(true));
+    report("lambda lifting", time(lifted, null, expect), untraced);
+    reportAllocation(lifted, expect);
+
+    Program optimized = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setOptimizingEnabled(true));
+    report("ssa optimizer", time(optimized, null, expect), untraced);
+
+    // Compare flat upvars to linked environments, and see which one AUTO
+    // picks.
+    Program linked = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setEnvironmentModel(EnvironmentModel.LINKED));
+    report("linked environments", time(linked, null, expect), untraced);
+    reportAllocation(linked, expect);
+
+    Program auto = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setEnvironmentModel(EnvironmentModel.AUTO));
+    report("automatic environments", time(auto, null, expect), untraced);
+
+    // Measures just the cost of the separate traced loop.
+    ExecutionListener ignore = new ExecutionListener() {
+      @Override
+      public void executed(VM vm, Function function, int ip, Op op) {
+        // Do nothing.
+      }
+    };
+
+    report("traced, no-op listener", time(program, ignore, expect),
+        untraced);
+
+    // Tracing every op used to be unconditional. Measure that too, but send
+    // it to a stream that discards everything so that we measure building
+    // the trace, not the console.
+    if (!code.contains("# skip-trace")) {
+      PrintStream nowhere = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+          // Do nothing.
+        }
+      });
+
+      // This is slow enough that a couple of runs is plenty.
+      report("traced, stack tracer",
+          time(program, new StackTracer(nowhere), expect, 1, 2), untraced);
+    }
+
+    // Show which pairs of ops run the most, to help find new
+    // superinstructions.
+    OpPairCounter counter = new OpPairCounter();
+    execute(program, counter, expect);
+    System.out.println("  most frequent op pairs:");
+    counter.report(System.out, 5);
+
+    System.out.println();
+  }
+
+  /**
+   * Compares the estimated size of a closure and its upvar storage to what it
+   * was when closures stored upvars in an ArrayList. That took the closure
+   * itself, the list, and a backing array with room for ten elements once
+   * anything was added. The Upvar objects themselves aren't counted since
+   * both ways share them.
+   */
+  private void reportClosureLayout() {
+    System.out.println("closure layout (estimated bytes per closure)");
+    System.out.println("  upvars   ArrayList    shaped     saved");
+
+    for (int numUpvars = 0; numUpvars <= 5; numUpvars++) {
+      long old = ObjectLayout.sizeOf(2) + ObjectLayout.sizeOf(ArrayList.class);
+      if (numUpvars > 0) {
+        old += ObjectLayout.sizeOfArray(Math.max(10, numUpvars));
+      }
+
+      Function function = new Function("layout",
+          Collections.<String>emptyList(), Collections.<String>emptyList());
+      function.setNumUpvars(numUpvars);
+      long shaped = ObjectLayout.sizeOf(Closure.create(function).getClass());
+      if (numUpvars > 3) {
+        shaped += ObjectLayout.sizeOfArray(numUpvars);
+      }
+
+      System.out.println(String.format("  %6d %11d %9d %9d", numUpvars, old,
+          shaped, old - shaped));
+    }
+
+    System.out.println();
+  }
+
+  /**
+   * Builds a large program to time the front end on by repeating the bench
+   * scripts until the source is at least LARGE_SOURCE_SIZE characters.
+   */
+  private String createLargeSource(File benchDir) throws IOException {
+    StringBuilder scripts = new StringBuilder();
+    for (File script : benchDir.listFiles()) {
+      if (script.getPath().endsWith(".bf")) {
+        scripts.append(new BulfinchScript(script.getPath()).getSource());
+        scripts.append("\n");
+      }
+    }
+
+    StringBuilder source = new StringBuilder();
+    while (source.length() < LARGE_SOURCE_SIZE) source.append(scripts);
+    return source.toString();
+  }
+
+  /**
+   * Shows how fast a large program lexes, both into a list of Tokens and
+   * into a TokenBuffer. The source is ASCII, so a character is a byte.
+   */
+  private void reportLexing(String source) {
+    double megabytes = source.length() / (1024.0 * 1024.0);
+    System.out.println(String.format("lexing %.1f MB", megabytes));
+
+    double tokens = timeLexing(source, false);
+    double buffered = timeLexing(source, true);
+    reportThroughput("token objects", tokens, megabytes);
+    reportThroughput("token buffer", buffered, megabytes);
+    System.out.println();
+  }
+
+  private double timeLexing(String source, boolean buffered) {
+    for (int i = 0; i < WARMUP_RUNS; i++) lex(source, buffered);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < TIMED_RUNS; i++) lex(source, buffered);
+    long elapsed = System.nanoTime() - start;
+
+    return elapsed / 1000000.0 / TIMED_RUNS;
+  }
+
+  private void lex(String source, boolean buffered) {
+    Lexer lexer = new Lexer(source);
+    if (buffered) {
+      lexer.readAll();
+    } else {
+      // Keep the tokens, like a parser would.
+      List<Token> tokens = new ArrayList<Token>();
+      while (true) {
+        Token token = lexer.readToken();
+        tokens.add(token);
+        if (token.getType() == TokenType.EOF) break;
+      }
+    }
+  }
+
+  /**
+   * Shows how long parsing a large program takes, and how much it
+   * allocates. Other than the AST, parsing shouldn't allocate anything.
+   */
+  private void reportParsing(String source) {
+    System.out.println(String.format("parsing %.1f MB",
+        source.length() / (1024.0 * 1024.0)));
+
+    for (int i = 0; i < WARMUP_RUNS; i++) parse(source);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < TIMED_RUNS; i++) parse(source);
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println(String.format("  %-24s %10.3f ms", "parse",
+        elapsed / 1000000.0 / TIMED_RUNS));
+
+    if (ManagementFactory.getThreadMXBean() instanceof
+        com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threads =
+          (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+
+      long before = threads.getThreadAllocatedBytes(thread);
+      parse(source);
+      long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+      System.out.println(String.format("    allocated %17.1f MB per parse",
+          allocated / (1024.0 * 1024.0)));
+    }
+
+    System.out.println();
+  }
+
+  private void parse(String source) {
+    new BulfinchParser(new Lexer(source)).parseProgram();
+  }
+
+  private void reportThroughput(String label, double millis,
+      double megabytes) {
+    System.out.println(String.format("  %-24s %10.3f ms  %6.1f MB/s", label,
+        millis, megabytes / (millis / 1000.0)));
+  }
+
+  /**
+   * Shows how many registers the program's functions need in total, and how
+   * many they would need if every local had a register of its own.
+   */
+  private void reportRegisters(Program program, String code) {
+    Program unshared = Bulfinch.compile(code, new CompilerOptions()
+        .setConstantTable(new ConstantTable())
+        .setRegisterSharingEnabled(false));
+
+    int shared = countRegisters(program);
+    int separate = countRegisters(unshared);
+    System.out.println(String.format(
+        "  registers: %d, %d without sharing (%d saved)", shared, separate,
+        separate - shared));
+  }
+
+  private int countRegisters(Program program) {
+    int count = 0;
+    for (int i = 0; i < program.getNumGlobals(); i++) {
+      Object global = program.getGlobal(i);
+      if (global instanceof Closure) {
+        count += countRegisters(((Closure)global).getFunction());
+      }
+    }
+
+    return count;
+  }
+
+  private int countRegisters(Function function) {
+    int count = function.getNumRegisters();
+    for (int i = 0; i < function.getNumConstants(); i++) {
+      if (function.getConstant(i) instanceof Function) {
+        count += countRegisters((Function)function.getConstant(i));
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Runs the program enough times to warm up the JIT and then returns the
+   * average time of a run in milliseconds.
+   */
+  private double time(Program program,
+      ExecutionListener listener, String expect) {
+    return time(program, listener, expect, WARMUP_RUNS, TIMED_RUNS);
+  }
+
+  private double time(Program program,
+      ExecutionListener listener, String expect, int warmupRuns,
+      int timedRuns) {
+    for (int i = 0; i < warmupRuns; i++) {
+      execute(program, listener, expect);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < timedRuns; i++) {
+      execute(program, listener, expect);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    return elapsed / 1000000.0 / timedRuns;
+  }
+
+  private void execute(Program program,
+      ExecutionListener listener, String expect) {
+    Object result = new VM(program, listener).execute();
+    if (!expect.equals(result.toString())) {
+      throw new RuntimeException("Expected " + expect + " but got " + result);
+    }
+  }
+
+  /**
+   * Reports how much memory a run allocates, if the JVM can tell us. This is
+   * a HotSpot extension, so it may not be available.
+   */
+  private void reportAllocation(Program program, String expect) {
+    if (!(ManagementFactory.getThreadMXBean() instanceof
+        com.sun.management.ThreadMXBean)) {
+      return;
+    }
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    long start = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < ALLOCATION_RUNS; i++) {
+      execute(program, null, expect);
+    }
+    long allocated = threads.getThreadAllocatedBytes(thread) - start;
+
+    System.out.println(String.format("    allocated %17.1f KB per run",
+        allocated / 1024.0 / ALLOCATION_RUNS));
+  }
+
+  private void report(String label, double millis, double baseline) {
+    System.out.println(String.format("  %-24s %10.3f ms  %6.2fx", label,
+        millis, millis / baseline));
+  }
+
+  private static final int WARMUP_RUNS = 10;
+  private static final int TIMED_RUNS = 20;
+  private static final int ALLOCATION_RUNS = 5;
+  private static final int LARGE_SOURCE_SIZE = 8 * 1024 * 1024;
+
+  private final Pattern mExpectPattern = Pattern.compile("# expect: (.+)\\n");
+}
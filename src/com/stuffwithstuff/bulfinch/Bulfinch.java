@@ -1,15 +1,169 @@
 package com.stuffwithstuff.bulfinch;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Bulfinch {
   public static void main(String[] args) throws IOException {
-    new Bulfinch().runTests();
+    CompilerOptions options = new CompilerOptions();
+    options.setConstantTable(new ConstantTable());
+    boolean streaming = false;
+    boolean parallel = false;
+    for (String arg : args) {
+      if (arg.equals("--no-peephole")) {
+        options.setPeepholeEnabled(false);
+      } else if (arg.equals("--no-superinstructions")) {
+        options.setSuperinstructionsEnabled(false);
+      } else if (arg.equals("--no-simplify")) {
+        options.setSimplifyingEnabled(false);
+      } else if (arg.equals("--no-escape-analysis")) {
+        options.setEscapeAnalysisEnabled(false);
+      } else if (arg.equals("--no-register-sharing")) {
+        options.setRegisterSharingEnabled(false);
+      } else if (arg.equals("--no-inlining")) {
+        options.setInliningEnabled(false);
+      } else if (arg.equals("--optimize")) {
+        options.setOptimizingEnabled(true);
+      } else if (arg.equals("--linked-environments")) {
+        options.setEnvironmentModel(EnvironmentModel.LINKED);
+      } else if (arg.equals("--auto-environments")) {
+        options.setEnvironmentModel(EnvironmentModel.AUTO);
+      } else if (arg.equals("--lambda-lifting")) {
+        options.setLambdaLiftingEnabled(true);
+      } else if (arg.equals("--streaming")) {
+        streaming = true;
+      } else if (arg.equals("--parallel")) {
+        parallel = true;
+      } else if (arg.equals("--no-interning")) {
+        options.setConstantTable(null);
+      } else {
+        System.out.println("Unknown option " + arg);
+        return;
+      }
+    }
+    
+    new Bulfinch(options, streaming, parallel).runTests();
+  }
+  
+  public Bulfinch(CompilerOptions options) {
+    this(options, false, false);
+  }
+  
+  /**
+   * @param streaming Whether to compile each test a function at a time. See
+   *                  compileStreaming().
+   * @param parallel  Whether to compile each test's functions in parallel.
+   *                  See compileParallel().
+   */
+  public Bulfinch(CompilerOptions options, boolean streaming,
+      boolean parallel) {
+    Expect.arg(!(streaming && parallel),
+        "Can't compile both streaming and in parallel.");
+    
+    mOptions = options;
+    mStreaming = streaming;
+    mParallel = parallel;
+  }
+  
+  /**
+   * Parses, compiles and links a program. The program's string constants are
+   * interned in a table of their own.
+   */
+  public static Program compile(CharSequence source) {
+    return compile(source,
+        new CompilerOptions().setConstantTable(new ConstantTable()));
+  }
+  
+  public static Program compile(CharSequence source,
+      CompilerOptions options) {
+    Map<String, FunctionExpr> program = parse(source, options);
+    
+    Map<String, Function> functions = new HashMap<String, Function>();
+    for (Entry<String, FunctionExpr> entry : program.entrySet()) {
+      functions.put(entry.getKey(), Compiler.compileTopLevel(
+          entry.getValue(), entry.getKey(), options));
+    }
+    
+    return Linker.link(functions);
+  }
+  
+  /**
+   * Like compile(), but resolves and compiles the top-level functions in
+   * parallel on the given pool. See ParallelCompiler. The program is the
+   * same as compile() would make.
+   */
+  public static Program compileParallel(CharSequence source,
+      CompilerOptions options, ForkJoinPool pool) {
+    Map<String, FunctionExpr> program = parse(source, options);
+    return Linker.link(ParallelCompiler.compile(program, options, pool));
+  }
+  
+  /**
+   * Like compile(), but compiles each top-level function as soon as it has
+   * been parsed. Its AST is garbage as soon as it's compiled, so only one
+   * function's AST is alive at a time instead of the whole program's.
+   * 
+   * Inlining only knows about the functions parsed so far, so calls to
+   * functions that are defined later in the source aren't inlined.
+   */
+  public static Program compileStreaming(CharSequence source,
+      final CompilerOptions options) {
+    final Map<String, Function> functions = new HashMap<String, Function>();
+    final Map<String, FunctionExpr> inlinable =
+        new HashMap<String, FunctionExpr>();
+    
+    BulfinchParser parser = new BulfinchParser(new Lexer(source));
+    parser.parseProgram(new TopLevelListener() {
+      @Override
+      public void parsed(String name, FunctionExpr function) {
+        Map<String, FunctionExpr> lifted;
+        if (options.isLambdaLiftingEnabled()) {
+          lifted = LambdaLifter.lift(name, function);
+        } else {
+          lifted = Collections.singletonMap(name, function);
+        }
+        
+        for (Entry<String, FunctionExpr> entry : lifted.entrySet()) {
+          FunctionExpr expr = entry.getValue();
+          if (options.isInliningEnabled()) {
+            Inliner.addCandidate(inlinable, entry.getKey(), expr, options);
+            expr = Inliner.inline(entry.getKey(), expr, inlinable);
+          }
+          
+          functions.put(entry.getKey(), Compiler.compileTopLevel(expr,
+              entry.getKey(), options));
+        }
+      }
+    });
+    
+    return Linker.link(functions);
+  }
+  
+  /**
+   * Parses a program and runs the passes that need to see all of it at
+   * once.
+   */
+  private static Map<String, FunctionExpr> parse(CharSequence source,
+      CompilerOptions options) {
+    Lexer lexer = new Lexer(source);
+    BulfinchParser parser = new BulfinchParser(lexer);
+    Map<String, FunctionExpr> program = parser.parseProgram();
+    
+    if (options.isLambdaLiftingEnabled()) {
+      program = LambdaLifter.lift(program);
+    }
+    
+    if (options.isInliningEnabled()) {
+      program = Inliner.inline(program, options);
+    }
+    
+    return program;
   }
   
   private void runTests() throws IOException {
@@ -32,27 +186,26 @@ public class Bulfinch {
     mTests++;
     
     BulfinchScript script = new BulfinchScript(path);
-    String code = script.getSource();
+    CharSequence code = script.getSource();
     
     Matcher m = mExpectPattern.matcher(code);
     m.find();
     String expect = m.group(1);
     
-    Lexer lexer = new Lexer(code);
-    BulfinchParser parser = new BulfinchParser(lexer);
-    Map<String, FunctionExpr> program = parser.parseProgram();
-    
-    Map<String, Closure> functions = new HashMap<String, Closure>();
-    for (Entry<String, FunctionExpr> entry : program.entrySet()) {
-      Function function = Compiler.compileTopLevel(entry.getValue(), entry.getKey());
-      functions.put(entry.getKey(), new Closure(function));
+    Program program;
+    if (mStreaming) {
+      program = compileStreaming(code, mOptions);
+    } else if (mParallel) {
+      program = compileParallel(code, mOptions, ForkJoinPool.commonPool());
+    } else {
+      program = compile(code, mOptions);
     }
     
-    for (Entry<String, Closure> entry : functions.entrySet()) {
-      entry.getValue().getFunction().dump();
+    for (int i = 0; i < program.getNumGlobals(); i++) {
+      ((Closure)program.getGlobal(i)).getFunction().dump();
     }
     
-    VM vm = new VM(functions);
+    VM vm = new VM(program, new StackTracer());
     Object result = vm.execute();
 
     System.out.println();
@@ -65,6 +218,9 @@ public class Bulfinch {
     }
   }
   
+  private final CompilerOptions mOptions;
+  private final boolean mStreaming;
+  private final boolean mParallel;
   private Pattern mExpectPattern = Pattern.compile("# expect: (.+)\\n");
   private int mTests = 0;
   private int mPasses = 0;
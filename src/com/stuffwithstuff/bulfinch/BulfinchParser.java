@@ -8,21 +8,36 @@ public class BulfinchParser extends Parser {
   }
   
   public Map<String, FunctionExpr> parseProgram() {
-    Map<String, FunctionExpr> functions = new HashMap<String, FunctionExpr>();
+    final Map<String, FunctionExpr> functions =
+        new HashMap<String, FunctionExpr>();
+
+    parseProgram(new TopLevelListener() {
+      @Override
+      public void parsed(String name, FunctionExpr function) {
+        functions.put(name, function);
+      }
+    });
     
+    return functions;
+  }
+  
+  /**
+   * Parses the program, passing each top-level function to the listener as
+   * soon as it has been parsed. The parser doesn't keep any of them.
+   */
+  public void parseProgram(TopLevelListener listener) {
     while (!match(TokenType.EOF)) {
       consume(TokenType.FN);
-      String name = consume(TokenType.NAME).getString();
+      consume(TokenType.NAME);
+      String name = getMatchText(0);
       
       List<String> params = parseParams();
       Expr body = parseBody();
       
-      functions.put(name, new FunctionExpr(params, body));
+      listener.parsed(name, new FunctionExpr(params, body));
       
       match(TokenType.LINE);
     }
-    
-    return functions;
   }
   
   private Expr sequence() {
@@ -58,7 +73,7 @@ public class BulfinchParser extends Parser {
   
   private Expr assign() {
     if (match(TokenType.NAME, TokenType.EQUALS)) {
-      String name = getMatch()[0].getString();
+      String name = getMatchText(0);
       Expr value = assign();
       return new AssignExpr(name, value);
     }
@@ -90,11 +105,12 @@ public class BulfinchParser extends Parser {
   
   private Expr primary() {
     if (match(TokenType.NAME)) {
-      String name = getMatch()[0].getString();
+      String name = getMatchText(0);
       return new NameExpr(name);
 
     } else if (match(TokenType.VAR)) {
-      String name = consume(TokenType.NAME).getString();
+      consume(TokenType.NAME);
+      String name = getMatchText(0);
       consume(TokenType.EQUALS);
       Expr value = call();
       return new VarExpr(name, value);
@@ -105,7 +121,7 @@ public class BulfinchParser extends Parser {
       return new FunctionExpr(params, body);
       
     } else if (match(TokenType.STRING)) {
-      return new StringExpr(getMatch()[0].getString());
+      return new StringExpr(getMatchText(0));
 
     } else if (match(TokenType.LEFT_PAREN)) {
       Expr expr = assign();
@@ -126,8 +142,8 @@ public class BulfinchParser extends Parser {
       // No params.
     } else {
       do {
-        String param = consume(TokenType.NAME).getString();
-        params.add(param);
+        consume(TokenType.NAME);
+        params.add(getMatchText(0));
       } while (match(TokenType.COMMA));
       
       consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
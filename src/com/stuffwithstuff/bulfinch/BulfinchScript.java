@@ -1,8 +1,18 @@
 package com.stuffwithstuff.bulfinch;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
+/**
+ * A script loaded from a file. Scripts are UTF-8. The file is decoded in a
+ * single pass straight into the buffer that the lexer reads, so the source
+ * isn't copied again after it's decoded.
+ */
 public class BulfinchScript {
   public BulfinchScript(String path) throws IOException {
     mPath = path;
@@ -13,32 +23,45 @@ public class BulfinchScript {
     return mPath;
   }
 
-  public String getSource() {
+  public CharSequence getSource() {
     return mSource;
   }
 
-  private static String readFile(String path) throws IOException {
+  private static CharBuffer readFile(String path) throws IOException {
     FileInputStream stream = new FileInputStream(path);
 
     try {
-      InputStreamReader input = new InputStreamReader(stream,
-          Charset.defaultCharset());
-      Reader reader = new BufferedReader(input);
+      FileChannel channel = stream.getChannel();
+      long size = channel.size();
 
-      StringBuilder builder = new StringBuilder();
-      char[] buffer = new char[8192];
-      int read;
-
-      while ((read = reader.read(buffer, 0, buffer.length)) > 0) {
-        builder.append(buffer, 0, read);
+      // Mapping a file has a fixed cost that reading a small file into
+      // memory doesn't, so only large files are mapped.
+      ByteBuffer bytes;
+      if (size >= MAP_THRESHOLD) {
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } else {
+        bytes = ByteBuffer.allocate((int)size);
+        while (bytes.hasRemaining() && (channel.read(bytes) >= 0)) {
+          // Keep reading until the buffer is full.
+        }
+        bytes.flip();
       }
 
-      return builder.toString();
+      // Like a Reader, replace bad input instead of failing.
+      CharsetDecoder decoder = UTF8.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      return decoder.decode(bytes);
     } finally {
       stream.close();
     }
   }
 
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Files at least this many bytes long are memory-mapped. */
+  private static final int MAP_THRESHOLD = 64 * 1024;
+
   private final String mPath;
-  private final String mSource;
+  private final CharBuffer mSource;
 }
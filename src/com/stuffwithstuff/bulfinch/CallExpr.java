@@ -17,6 +17,18 @@ public class CallExpr implements Expr {
     return mArgs;
   }
 
+  /**
+   * True if the called function reads the caller's registers, so the caller's
+   * frame has to stay around while it runs. See EscapeAnalyzer.
+   */
+  public boolean keepsCallerFrame() {
+    return mKeepsCallerFrame;
+  }
+
+  public void markKeepsCallerFrame() {
+    mKeepsCallerFrame = true;
+  }
+
   @Override
   public String toString() {
     StringBuffer buffer = new StringBuffer();
@@ -37,4 +49,5 @@ public class CallExpr implements Expr {
 
   private final Expr mFunction;
   private final List<Expr> mArgs;
+  private boolean mKeepsCallerFrame;
 }
@@ -1,34 +1,159 @@
 package com.stuffwithstuff.bulfinch;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * A first-class function and its captured environment.
+ * 
+ * The number of upvars a closure has is known from its function, so closures
+ * come in a few shapes. Closures with up to three upvars store them in fields
+ * of their own. Larger ones store them in an array that is allocated at the
+ * exact size up front. Each slot holds either a shared Upvar or, for a
+ * variable captured by value, the value itself. Use create() to get a
+ * closure of the right shape.
  */
-public class Closure {
-  public Closure(Function function) {
-    mFunction = function;
-    mUpvars = new ArrayList<Upvar>();
+public abstract class Closure {
+  /** Creates a new closure for the function, with room for its upvars. */
+  public static Closure create(Function function) {
+    switch (function.getNumUpvars()) {
+    case 0: return new Closure0(function);
+    case 1: return new Closure1(function);
+    case 2: return new Closure2(function);
+    case 3: return new Closure3(function);
+    default: return new ClosureN(function);
+    }
   }
   
   public Function getFunction() {
     return mFunction;
   }
   
-  public void addUpvar(Upvar upvar) {
-    mUpvars.add(upvar);
-  }
-  
+  /** Gets an upvar that shares a variable with the enclosing function. */
   public Upvar getUpvar(int index) {
-    return mUpvars.get(index);
+    return (Upvar)getCapture(index);
   }
   
+  /**
+   * Gets what the closure captured in the given upvar slot. For a variable
+   * that is never assigned this is the variable's value. Otherwise, it's the
+   * Upvar shared with the enclosing function.
+   */
+  public abstract Object getCapture(int index);
+  
+  /** Fills in one of the closure's upvar slots when it is created. */
+  abstract void setCapture(int index, Object capture);
+  
   @Override
   public String toString() {
     return mFunction.toString();
   }
   
+  private Closure(Function function) {
+    mFunction = function;
+  }
+  
   private final Function mFunction;
-  private final List<Upvar> mUpvars;
+  
+  private static final class Closure0 extends Closure {
+    Closure0(Function function) {
+      super(function);
+    }
+    
+    @Override
+    public Object getCapture(int index) {
+      throw new IndexOutOfBoundsException("Closure has no upvars.");
+    }
+    
+    @Override
+    void setCapture(int index, Object capture) {
+      throw new IndexOutOfBoundsException("Closure has no upvars.");
+    }
+  }
+  
+  private static final class Closure1 extends Closure {
+    Closure1(Function function) {
+      super(function);
+    }
+    
+    @Override
+    public Object getCapture(int index) {
+      return mCapture0;
+    }
+    
+    @Override
+    void setCapture(int index, Object capture) {
+      mCapture0 = capture;
+    }
+    
+    private Object mCapture0;
+  }
+  
+  private static final class Closure2 extends Closure {
+    Closure2(Function function) {
+      super(function);
+    }
+    
+    @Override
+    public Object getCapture(int index) {
+      if (index == 0) return mCapture0;
+      return mCapture1;
+    }
+    
+    @Override
+    void setCapture(int index, Object capture) {
+      if (index == 0) {
+        mCapture0 = capture;
+      } else {
+        mCapture1 = capture;
+      }
+    }
+    
+    private Object mCapture0;
+    private Object mCapture1;
+  }
+  
+  private static final class Closure3 extends Closure {
+    Closure3(Function function) {
+      super(function);
+    }
+    
+    @Override
+    public Object getCapture(int index) {
+      switch (index) {
+      case 0: return mCapture0;
+      case 1: return mCapture1;
+      default: return mCapture2;
+      }
+    }
+    
+    @Override
+    void setCapture(int index, Object capture) {
+      switch (index) {
+      case 0: mCapture0 = capture; break;
+      case 1: mCapture1 = capture; break;
+      default: mCapture2 = capture; break;
+      }
+    }
+    
+    private Object mCapture0;
+    private Object mCapture1;
+    private Object mCapture2;
+  }
+  
+  private static final class ClosureN extends Closure {
+    ClosureN(Function function) {
+      super(function);
+      mCaptures = new Object[function.getNumUpvars()];
+    }
+    
+    @Override
+    public Object getCapture(int index) {
+      return mCaptures[index];
+    }
+    
+    @Override
+    void setCapture(int index, Object capture) {
+      mCaptures[index] = capture;
+    }
+    
+    private final Object[] mCaptures;
+  }
 }
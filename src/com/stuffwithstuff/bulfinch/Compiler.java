@@ -1,7 +1,9 @@
 package com.stuffwithstuff.bulfinch;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Compiles functions to bytecode and handles allocating the registers.
@@ -10,9 +12,10 @@ import java.util.List;
  * [params...] [locals...] [temporaries]
  * 
  * The parameters will use an overlapping register window from the caller's
- * registers. After that, we allocate a register for each local variable
- * declared in the function. Then we create as many temporary registers as
- * needed for things like function call arguments.
+ * registers. After that, we allocate registers for the local variables
+ * declared in the function. Locals whose lifetimes don't overlap can share a
+ * register (see LocalAllocator). Then we create as many temporary registers
+ * as needed for things like function call arguments.
  * 
  * Whenever we compile a call, we set it up so that the function to be called
  * and its arguments are at the end of the registers so that the callee can
@@ -33,14 +36,98 @@ import java.util.List;
  */
 public class Compiler implements ExprVisitor<Integer> {
   public static Function compileTopLevel(FunctionExpr function, String name) {
+    return compileTopLevel(function, name, new CompilerOptions());
+  }
+
+  public static Function compileTopLevel(FunctionExpr function, String name,
+      CompilerOptions options) {
+    if (options.isSimplifyingEnabled()) {
+      function = Simplifier.simplify(function);
+    }
+    
     NameResolver.resolveTopLevel(function);
-    return compileInnerFunction(function, name);
+    
+    boolean linked = useLinkedEnvironments(function, options);
+    
+    // Functions that don't escape read their caller's registers, but with
+    // linked environments the captured variables aren't in registers.
+    if (options.isEscapeAnalysisEnabled() && !linked) {
+      EscapeAnalyzer.analyze(function);
+    }
+    
+    return compileInnerFunction(function, name, options, linked, null);
   }
 
-  private static Function compileInnerFunction(FunctionExpr function, String name) {
-    Compiler compiler = new Compiler();
-    compiler.compile(function, name);
-    return compiler.mFunction;
+  /**
+   * Decides which EnvironmentModel to compile a top-level function and the
+   * functions nested in it with.
+   */
+  private static boolean useLinkedEnvironments(FunctionExpr function,
+      CompilerOptions options) {
+    switch (options.getEnvironmentModel()) {
+    case FLAT: return false;
+    case LINKED: return true;
+    default:
+      // Flat upvars are faster to use, so only link environments when
+      // creating closures would copy lots of upvars down through other
+      // functions.
+      int[] counts = new int[2];
+      countUpvars(function.getBody(), counts);
+      return counts[1] > counts[0] * LINKED_THRESHOLD;
+    }
+  }
+  
+  /**
+   * Counts the upvars of every function nested in the expression. counts[0]
+   * gets the ones that close over a local, and counts[1] gets the ones that
+   * copy an upvar down from an enclosing function.
+   */
+  private static void countUpvars(Expr expr, int[] counts) {
+    if (expr instanceof FunctionExpr) {
+      for (UpvarRef upvar : ((FunctionExpr)expr).getUpvars()) {
+        counts[upvar.isLocal() ? 0 : 1]++;
+      }
+      countUpvars(((FunctionExpr)expr).getBody(), counts);
+    } else if (expr instanceof AssignExpr) {
+      countUpvars(((AssignExpr)expr).getValue(), counts);
+    } else if (expr instanceof CallExpr) {
+      countUpvars(((CallExpr)expr).getFunction(), counts);
+      for (Expr arg : ((CallExpr)expr).getArgs()) countUpvars(arg, counts);
+    } else if (expr instanceof IfExpr) {
+      countUpvars(((IfExpr)expr).getCondition(), counts);
+      countUpvars(((IfExpr)expr).getThenArm(), counts);
+      countUpvars(((IfExpr)expr).getElseArm(), counts);
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        countUpvars(inner, counts);
+      }
+    } else if (expr instanceof VarExpr) {
+      countUpvars(((VarExpr)expr).getValue(), counts);
+    }
+  }
+  
+  static Function compileInnerFunction(FunctionExpr function, String name,
+      CompilerOptions options, boolean linked, Compiler parent) {
+    Function compiled;
+    if (options.isOptimizingEnabled() &&
+        SsaBuilder.canBuild(function, linked)) {
+      SsaFunction ssa = SsaOptimizer.optimize(SsaBuilder.build(function));
+      compiled = SsaLowering.lower(ssa, name, options);
+    } else {
+      Compiler compiler = new Compiler(options, linked, parent);
+      compiler.compile(function, name);
+      compiled = compiler.mFunction;
+    }
+    
+    if (options.isPeepholeEnabled()) {
+      Peephole.optimize(compiled);
+    }
+    
+    if (options.isSuperinstructionsEnabled()) {
+      Peephole.fuse(compiled);
+    }
+    
+    return compiled;
   }
   
   /**
@@ -54,10 +141,12 @@ public class Compiler implements ExprVisitor<Integer> {
   @Override
   public void visit(AssignExpr expr, Integer dest) {
     if (expr.getName().isLocal()) {
-      int register = expr.getName().getLocalIndex();
+      int local = expr.getName().getLocalIndex();
+      int register = getRegister(local);
       
       // Assign the value to the local.
       expr.getValue().accept(this, register);
+      storeEnvironmentSlot(local);
       
       // If we have another destination, copy there too. This would be something
       // like:
@@ -79,7 +168,16 @@ public class Compiler implements ExprVisitor<Integer> {
       expr.getValue().accept(this, register);
       
       // Assign to the upvar.
-      write(Op.STORE_UPVAR, expr.getName().getUpvar().getSlot(), register);
+      UpvarRef upvar = expr.getName().getUpvar();
+      if (mLinked) {
+        write(Op.STORE_ENV, getEnvironmentDepth(upvar),
+            getEnvironmentSlot(upvar), register);
+      } else if (mReadsParentFrame) {
+        write(Op.STORE_PARENT, mParent.getRegister(upvar.getIndex()),
+            register);
+      } else {
+        write(Op.STORE_UPVAR, upvar.getSlot(), register);
+      }
       
       if (dest == DISCARD) {
         pop(register);
@@ -105,8 +203,13 @@ public class Compiler implements ExprVisitor<Integer> {
       expr.getArgs().get(i).accept(this, arg);
     }
     
-    // Call it.
-    write(Op.CALL, register, fn, expr.getArgs().size());
+    // Call it. If the result is just going to be returned, the callee can
+    // take over this function's frame.
+    if (mTailCalls.contains(expr)) {
+      write(Op.TAIL_CALL, fn, expr.getArgs().size());
+    } else {
+      write(Op.CALL, register, fn, expr.getArgs().size());
+    }
     
     for (int i = 0; i < expr.getArgs().size(); i++) {
       pop();
@@ -126,19 +229,40 @@ public class Compiler implements ExprVisitor<Integer> {
     
     // Compile the function and add it to the constant pool.
     String name = mFunction.getDebugName() + ":" + mFunction.getNumConstants();
-    Function function = Compiler.compileInnerFunction(expr, name);
+    Function function = Compiler.compileInnerFunction(expr, name, mOptions,
+        mLinked, this);
     int index = mFunction.addConstant(function);
     
     // Write an op to create a closure for the function.
     write(Op.CLOSURE, index, dest);
     
+    // With linked environments, the closure's only upvar is a link to our
+    // environment.
+    if (mLinked) {
+      if (function.getNumUpvars() > 0) write(Op.ADD_ENV, -1);
+      return;
+    }
+    
+    // A function that doesn't escape doesn't capture anything. Instead, it
+    // accesses the variables in our registers directly.
+    if (expr.isNonEscaping()) {
+      for (UpvarRef upvar : expr.getUpvars()) {
+        mFunction.addCapturedRegister(getRegister(upvar.getIndex()));
+      }
+      return;
+    }
+    
     // Capture the upvars.
     for (UpvarRef upvar : expr.getUpvars()) {
-      if (upvar.isLocal()) {
+      if (upvar.isLocal() && upvar.isByValue()) {
+        // Copying a local that never changes.
+        write(Op.ADD_VALUE_UPVAR, getRegister(upvar.getIndex()));
+      } else if (upvar.isLocal()) {
         // Closing over a local.
-        write(Op.ADD_UPVAR, upvar.getIndex());
+        write(Op.ADD_UPVAR, getRegister(upvar.getIndex()));
       } else {
-        // Closing over an upvar.
+        // Closing over an upvar. This copies the enclosing closure's upvar,
+        // whether it holds a shared variable or a value.
         write(Op.ADD_OUTER_UPVAR, upvar.getIndex());
       }
     }
@@ -146,12 +270,23 @@ public class Compiler implements ExprVisitor<Integer> {
 
   @Override
   public void visit(IfExpr expr, Integer dest) {
-    expr.getCondition().accept(this, dest);
+    // Even if the result is discarded, the condition needs a real register to
+    // be tested from.
+    int condition = dest;
+    if (condition == DISCARD) {
+      condition = push();
+    }
+    
+    expr.getCondition().accept(this, condition);
+    
+    if (dest == DISCARD) {
+      pop(condition);
+    }
     
     int jumpToElse = startJump();
     expr.getThenArm().accept(this, dest);
     int jumpOverElse = startJump();
-    endJumpIfFalse(jumpToElse, dest);
+    endJumpIfFalse(jumpToElse, condition);
     expr.getElseArm().accept(this, dest);
     endJump(jumpOverElse);
   }
@@ -162,12 +297,28 @@ public class Compiler implements ExprVisitor<Integer> {
     if (dest == DISCARD) return;
     
     if (expr.getName().isLocal()) {
-      write(Op.MOVE, expr.getName().getLocalIndex(), dest);
+      int local = expr.getName().getLocalIndex();
+      int slot = getEnvironmentSlot(local);
+      if (slot != -1) {
+        write(Op.LOAD_ENV, 0, slot, dest);
+      } else {
+        write(Op.MOVE, getRegister(local), dest);
+      }
     } else if (expr.getName().isUpvar()) {
-      write(Op.LOAD_UPVAR, expr.getName().getUpvar().getSlot(), dest);
+      UpvarRef upvar = expr.getName().getUpvar();
+      if (mLinked) {
+        write(Op.LOAD_ENV, getEnvironmentDepth(upvar),
+            getEnvironmentSlot(upvar), dest);
+      } else if (mReadsParentFrame) {
+        write(Op.LOAD_PARENT, mParent.getRegister(upvar.getIndex()), dest);
+      } else if (upvar.isByValue()) {
+        write(Op.LOAD_VALUE_UPVAR, upvar.getSlot(), dest);
+      } else {
+        write(Op.LOAD_UPVAR, upvar.getSlot(), dest);
+      }
     } else {
       // Must be a global.
-      int name = mFunction.addConstant(expr.getName().getIdentifier());
+      int name = addConstant(expr.getName().getIdentifier());
       write(Op.LOAD_GLOBAL, name, dest);
     }
   }
@@ -191,9 +342,11 @@ public class Compiler implements ExprVisitor<Integer> {
   @Override
   public void visit(VarExpr expr, Integer dest) {
     // Initialize the local.
-    int localRegister = expr.getName().getLocalIndex();
+    int local = expr.getName().getLocalIndex();
+    int localRegister = getRegister(local);
     
     expr.getValue().accept(this, localRegister);
+    storeEnvironmentSlot(local);
     
     // Then copy the value to the desired slot.
     if ((dest != DISCARD) && (localRegister != dest)) {
@@ -201,28 +354,92 @@ public class Compiler implements ExprVisitor<Integer> {
     }
   }
 
-  private Compiler() {}
+  private Compiler(CompilerOptions options, boolean linked,
+      Compiler parent) {
+    mOptions = options;
+    mLinked = linked;
+    mParent = parent;
+  }
   
   private void compile(FunctionExpr function, String name) {
     List<String> locals = function.getLocals();
+    
+    // A function that doesn't escape has no upvars. It reads the variables
+    // it uses straight from the frame of the function that calls it.
+    mReadsParentFrame = function.isNonEscaping();
+    
+    mFunctionExpr = function;
+    
     List<String> upvarNames = new ArrayList<String>();
-    for (UpvarRef upvar : function.getUpvars()) {
-      upvarNames.add(upvar.getName());
+    if (mLinked) {
+      // The only upvar is the link to the enclosing environment, if it
+      // uses anything from outside.
+      if (function.getUpvars().size() > 0) {
+        upvarNames.add("<environment>");
+      }
+    } else if (!mReadsParentFrame) {
+      for (UpvarRef upvar : function.getUpvars()) {
+        upvarNames.add(upvar.getName());
+      }
+    }
+    
+    if (mOptions.isRegisterSharingEnabled()) {
+      mRegisters = LocalAllocator.allocate(function, mLinked);
+    } else {
+      mRegisters = new int[locals.size()];
+      for (int i = 0; i < locals.size(); i++) mRegisters[i] = i;
     }
-    mFunction = new Function(name, locals, upvarNames);
+    
+    mFunction = new Function(name,
+        LocalAllocator.getRegisterNames(locals, mRegisters), upvarNames);
     
     // Make sure we have registers for each local.
-    mUsedRegisters = mFunction.ensureRegisters(locals.size());
+    mUsedRegisters = mFunction.ensureRegisters(
+        LocalAllocator.getNumRegisters(mRegisters));
 
+    // Create the environment and copy in any parameters that live there.
+    if (mLinked && !function.getCapturedLocals().isEmpty()) {
+      write(Op.NEW_ENV, function.getCapturedLocals().size(),
+          upvarNames.isEmpty() ? 0 : 1);
+      
+      for (int i = 0; i < function.getParameters().size(); i++) {
+        storeEnvironmentSlot(i);
+      }
+    }
+    
     int resultRegister = push();
 
     // Compile the body.
+    findTailCalls(function.getBody());
     function.getBody().accept(this,  resultRegister);
     write(Op.RETURN, resultRegister);
     
     pop(resultRegister);
     
-    mFunction.setNumUpvars(function.getUpvars().size());
+    mFunction.setNumUpvars(upvarNames.size());
+  }
+
+  /**
+   * Finds the calls in the given expression whose result will be returned
+   * immediately from the function. Those can be compiled to TAIL_CALL.
+   */
+  private void findTailCalls(Expr expr) {
+    if (expr instanceof CallExpr) {
+      // A call that needs our frame to stay around can't replace it.
+      if (!((CallExpr)expr).keepsCallerFrame()) {
+        mTailCalls.add((CallExpr)expr);
+      }
+    } else if (expr instanceof SequenceExpr) {
+      // Only the last expression's value is returned.
+      List<Expr> exprs = ((SequenceExpr)expr).getExpressions();
+      if (exprs.size() > 0) {
+        findTailCalls(exprs.get(exprs.size() - 1));
+      }
+    } else if (expr instanceof IfExpr) {
+      // Both arms flow straight to the end of the if.
+      findTailCalls(((IfExpr)expr).getThenArm());
+      findTailCalls(((IfExpr)expr).getElseArm());
+    }
   }
 
   private int push() {
@@ -247,42 +464,105 @@ public class Compiler implements ExprVisitor<Integer> {
   }
   
   private void write(int op, int a, int b, int c) {
-    mFunction.getCode().add(new Op(op, a, b, c));
+    mFunction.write(op, a, b, c);
   }
   
   private void write(int op, int a, int b) {
-    mFunction.getCode().add(new Op(op, a, b));
+    mFunction.write(op, a, b, -1);
   }
   
   private void write(int op, int a) {
-    mFunction.getCode().add(new Op(op, a));
+    mFunction.write(op, a, -1, -1);
   }
 
   private int startJump() {
     // Insert a placeholder op.
-    mFunction.getCode().add(new Op(-1));
-    return mFunction.getCode().size() - 1;
+    return mFunction.write(-1, -1, -1, -1);
+  }
+  
+  private int getRegister(int local) {
+    return mRegisters[local];
+  }
+  
+  /**
+   * Gets the slot in this function's environment that holds the given local,
+   * or -1 if it's just in a register.
+   */
+  private int getEnvironmentSlot(int local) {
+    if (!mLinked) return -1;
+    return mFunctionExpr.getEnvironmentSlot(local);
+  }
+  
+  private int getEnvironmentSlot(UpvarRef upvar) {
+    return upvar.getOwner().getEnvironmentSlot(upvar.getDeclaredIndex());
+  }
+  
+  /**
+   * Counts how many environments there are between this function and the
+   * one that declares the upvar's variable. Only functions that capture
+   * variables create environments.
+   */
+  private int getEnvironmentDepth(UpvarRef upvar) {
+    int depth = 0;
+    for (Compiler compiler = this; compiler.mFunctionExpr != upvar.getOwner();
+        compiler = compiler.mParent) {
+      if (!compiler.mFunctionExpr.getCapturedLocals().isEmpty()) depth++;
+    }
+    
+    return depth;
+  }
+  
+  /**
+   * If the local lives in this function's environment, copies the value that
+   * was just written to its register there too.
+   */
+  private void storeEnvironmentSlot(int local) {
+    int slot = getEnvironmentSlot(local);
+    if (slot != -1) write(Op.STORE_ENV, 0, slot, getRegister(local));
   }
   
   private void endJump(int jump) {
     // -1 because the IP has already been advanced one.
-    int offset = mFunction.getCode().size() - jump - 1;
-    mFunction.getCode().set(jump, new Op(Op.JUMP, offset));
+    int offset = mFunction.getCodeSize() - jump - 1;
+    mFunction.patch(jump, Op.JUMP, offset, -1, -1);
   }
   
   private void endJumpIfFalse(int jump, int condition) {
     // -1 because the IP has already been advanced one.
-    int offset = mFunction.getCode().size() - jump - 1;
-    mFunction.getCode().set(jump, new Op(Op.JUMP_IF_FALSE, condition, offset));
+    int offset = mFunction.getCodeSize() - jump - 1;
+    mFunction.patch(jump, Op.JUMP_IF_FALSE, condition, offset, -1);
   }
   
   private void compileConstant(Object value, int dest) {
     // Don't load the constant if we aren't loading it into anything.
     if (dest == DISCARD) return;
     
-    write(Op.CONSTANT, mFunction.addConstant(value), dest);
+    write(Op.CONSTANT, addConstant(value), dest);
   }
   
+  private int addConstant(Object value) {
+    ConstantTable table = mOptions.getConstantTable();
+    if (table != null) {
+      value = table.intern(value);
+    }
+    
+    return mFunction.addConstant(value);
+  }
+  
+  /**
+   * When picking an EnvironmentModel automatically, linked environments are
+   * used if closures would copy this many times more upvars down from
+   * enclosing functions than they capture directly.
+   */
+  private static final int LINKED_THRESHOLD = 2;
+  
+  private final CompilerOptions mOptions;
+  private final boolean mLinked;
+  private final Compiler mParent;
+  private FunctionExpr mFunctionExpr;
   private Function mFunction;
+  private int[] mRegisters;
+  private boolean mReadsParentFrame;
   private int mUsedRegisters;
+  private final Set<CallExpr> mTailCalls = new HashSet<CallExpr>();
 }
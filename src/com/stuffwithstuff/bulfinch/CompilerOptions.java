@@ -0,0 +1,177 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Controls which optional passes the compiler runs. The defaults are what
+ * should be used normally. Turning passes off is mainly useful for seeing
+ * what the compiler does without them.
+ */
+public class CompilerOptions {
+  /** Whether the peephole optimizer cleans up each compiled function. */
+  public boolean isPeepholeEnabled() {
+    return mPeepholeEnabled;
+  }
+
+  public CompilerOptions setPeepholeEnabled(boolean enabled) {
+    mPeepholeEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Whether common pairs of ops are fused into superinstructions. This runs
+   * after the peephole optimizer.
+   */
+  public boolean isSuperinstructionsEnabled() {
+    return mSuperinstructionsEnabled;
+  }
+
+  public CompilerOptions setSuperinstructionsEnabled(boolean enabled) {
+    mSuperinstructionsEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Whether constant conditions are folded away and useless code is removed
+   * before compiling. See Simplifier.
+   */
+  public boolean isSimplifyingEnabled() {
+    return mSimplifyingEnabled;
+  }
+
+  public CompilerOptions setSimplifyingEnabled(boolean enabled) {
+    mSimplifyingEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Whether local functions that are only called directly have their
+   * closures optimized away. See EscapeAnalyzer.
+   */
+  public boolean isEscapeAnalysisEnabled() {
+    return mEscapeAnalysisEnabled;
+  }
+
+  public CompilerOptions setEscapeAnalysisEnabled(boolean enabled) {
+    mEscapeAnalysisEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Whether locals whose lifetimes don't overlap share a register. See
+   * LocalAllocator.
+   */
+  public boolean isRegisterSharingEnabled() {
+    return mRegisterSharingEnabled;
+  }
+
+  public CompilerOptions setRegisterSharingEnabled(boolean enabled) {
+    mRegisterSharingEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Whether functions are compiled through the SSA optimizer. That takes
+   * longer to compile, so it's off by default. Functions with captured
+   * locals or linked environments are always compiled directly. See
+   * SsaBuilder.
+   */
+  public boolean isOptimizingEnabled() {
+    return mOptimizingEnabled;
+  }
+
+  public CompilerOptions setOptimizingEnabled(boolean enabled) {
+    mOptimizingEnabled = enabled;
+    return this;
+  }
+
+  /** How closures get at the variables they capture. */
+  public EnvironmentModel getEnvironmentModel() {
+    return mEnvironmentModel;
+  }
+
+  public CompilerOptions setEnvironmentModel(EnvironmentModel model) {
+    mEnvironmentModel = model;
+    return this;
+  }
+
+  /**
+   * Whether local functions that only capture variables that never change
+   * are lifted out into top-level functions. See LambdaLifter. This is off
+   * by default.
+   */
+  public boolean isLambdaLiftingEnabled() {
+    return mLambdaLiftingEnabled;
+  }
+
+  public CompilerOptions setLambdaLiftingEnabled(boolean enabled) {
+    mLambdaLiftingEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Whether calls to small top-level functions are replaced with the
+   * functions' bodies. See Inliner.
+   */
+  public boolean isInliningEnabled() {
+    return mInliningEnabled;
+  }
+
+  public CompilerOptions setInliningEnabled(boolean enabled) {
+    mInliningEnabled = enabled;
+    return this;
+  }
+
+  /**
+   * Returns true if calls to the given global may be inlined. They can't be
+   * if inlining is off or has been disabled for that global.
+   */
+  public boolean canInline(String global) {
+    return mInliningEnabled && !mNotInlined.contains(global);
+  }
+
+  /**
+   * Keeps calls to the given global from being inlined. An embedder that
+   * may later redefine a global should do this, since inlined calls keep
+   * using the body the global had when they were compiled.
+   */
+  public CompilerOptions disableInlining(String global) {
+    mNotInlined.add(global);
+    return this;
+  }
+
+  /**
+   * Lets calls to a global that had inlining disabled be inlined again.
+   */
+  public CompilerOptions enableInlining(String global) {
+    mNotInlined.remove(global);
+    return this;
+  }
+
+  /**
+   * The table that string constants are interned in, or null if they aren't
+   * interned. When every function in a program is compiled with the same
+   * table, equal constants in different functions are a single object.
+   */
+  public ConstantTable getConstantTable() {
+    return mConstantTable;
+  }
+
+  public CompilerOptions setConstantTable(ConstantTable table) {
+    mConstantTable = table;
+    return this;
+  }
+
+  private boolean mPeepholeEnabled = true;
+  private boolean mSuperinstructionsEnabled = true;
+  private boolean mEscapeAnalysisEnabled = true;
+  private boolean mSimplifyingEnabled = true;
+  private boolean mLambdaLiftingEnabled = false;
+  private boolean mRegisterSharingEnabled = true;
+  private boolean mOptimizingEnabled = false;
+  private boolean mInliningEnabled = true;
+  private final Set<String> mNotInlined = new HashSet<String>();
+  private EnvironmentModel mEnvironmentModel = EnvironmentModel.FLAT;
+  private ConstantTable mConstantTable;
+}
@@ -0,0 +1,31 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns constants so that equal constants used by different functions are
+ * the same object. A single table can be shared by every function in a
+ * program, so a name that is referenced all over the place is only stored
+ * once. It's safe to use from several threads at once.
+ */
+public class ConstantTable {
+  /**
+   * Gets the canonical instance of the given constant. The first time a value
+   * is seen, it becomes the canonical one.
+   */
+  public Object intern(Object constant) {
+    Object existing = mConstants.putIfAbsent(constant, constant);
+    if (existing != null) return existing;
+
+    return constant;
+  }
+
+  /** Gets the number of distinct constants that have been interned. */
+  public int size() {
+    return mConstants.size();
+  }
+
+  private final ConcurrentMap<Object, Object> mConstants =
+      new ConcurrentHashMap<Object, Object>();
+}
@@ -0,0 +1,40 @@
+package com.stuffwithstuff.bulfinch;
+
+/**
+ * A heap-allocated record holding the captured variables of one call to a
+ * function, when compiled with linked environments. Closures created by the
+ * function point to it, and it points to the environment that was current
+ * when the function's own closure was created. A variable declared N
+ * environments out is found by following N parent links.
+ */
+public class Environment {
+  public Environment(Environment parent, int size) {
+    mParent = parent;
+    mSlots = new Object[size];
+  }
+  
+  public Environment getParent() {
+    return mParent;
+  }
+  
+  /** Walks the given number of parent links out from this environment. */
+  public Environment getAncestor(int depth) {
+    Environment environment = this;
+    for (int i = 0; i < depth; i++) {
+      environment = environment.mParent;
+    }
+    
+    return environment;
+  }
+  
+  public Object get(int slot) {
+    return mSlots[slot];
+  }
+  
+  public void set(int slot, Object value) {
+    mSlots[slot] = value;
+  }
+  
+  private final Environment mParent;
+  private final Object[] mSlots;
+}
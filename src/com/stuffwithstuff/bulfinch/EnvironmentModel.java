@@ -0,0 +1,24 @@
+package com.stuffwithstuff.bulfinch;
+
+/**
+ * How closures get at the variables they capture.
+ */
+public enum EnvironmentModel {
+  /**
+   * Each closure has its own flat list of upvars. A variable captured from
+   * several functions out is copied into the upvars of every function in
+   * between, so creating a closure costs one step per variable it uses.
+   */
+  FLAT,
+  
+  /**
+   * Each function that has captured variables keeps them in an Environment
+   * record. A closure holds a single link to the record that was current
+   * when it was created, so creating one is constant time. Reaching a
+   * variable means following one link per environment in between.
+   */
+  LINKED,
+  
+  /** Picks one of the others for each top-level function. */
+  AUTO
+}
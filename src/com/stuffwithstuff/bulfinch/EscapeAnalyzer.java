@@ -0,0 +1,161 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds local functions whose closures never escape the function that
+ * defines them. That's a function literal that is stored in a variable and
+ * then only ever called directly, like:
+ * 
+ *  fn main() {
+ *    var a = "a"
+ *    var foo = fn() {
+ *      a
+ *    }
+ *    foo()
+ *  }
+ * 
+ * Since foo can only be called by main, main's frame is always right below
+ * foo's frame while it runs. Instead of closing over a, foo can read it
+ * straight out of main's registers. That means the closure doesn't capture
+ * anything, so no Closure or Upvar needs to be allocated for it.
+ * 
+ * A function qualifies when:
+ * 
+ * - It is the initializer of a var whose own value isn't used.
+ * - The var is never assigned, captured by another closure, or used as
+ *   anything but the function in a call.
+ * - It only closes over locals of the defining function. It doesn't reach
+ *   any further out, and it doesn't contain function literals of its own.
+ * 
+ * This must run after the names have been resolved.
+ */
+public class EscapeAnalyzer implements ExprVisitor<Boolean> {
+  public static void analyze(FunctionExpr function) {
+    new EscapeAnalyzer().analyzeFunction(function);
+  }
+  
+  private void analyzeFunction(FunctionExpr function) {
+    // The function's value is always used since it is returned.
+    function.getBody().accept(this, true);
+    
+    for (Map.Entry<Integer, FunctionExpr> entry : mCandidates.entrySet()) {
+      int local = entry.getKey();
+      FunctionExpr candidate = entry.getValue();
+      
+      if (mEscaped.contains(local)) continue;
+      if (!mLeafFunctions.contains(candidate)) continue;
+      
+      boolean onlyLocals = true;
+      for (UpvarRef upvar : candidate.getUpvars()) {
+        if (!upvar.isLocal()) onlyLocals = false;
+      }
+      if (!onlyLocals) continue;
+      
+      candidate.markNonEscaping();
+      
+      // If it reads the caller's registers, the calls need the caller's
+      // frame to stick around, so they can't be tail calls.
+      List<CallExpr> calls = mCalls.get(local);
+      if ((calls != null) && !candidate.getUpvars().isEmpty()) {
+        for (CallExpr call : calls) call.markKeepsCallerFrame();
+      }
+    }
+  }
+  
+  @Override
+  public void visit(AssignExpr expr, Boolean used) {
+    if (expr.getName().isLocal()) {
+      mEscaped.add(expr.getName().getLocalIndex());
+    }
+    
+    expr.getValue().accept(this, true);
+  }
+
+  @Override
+  public void visit(CallExpr expr, Boolean used) {
+    Expr function = expr.getFunction();
+    if ((function instanceof NameExpr) &&
+        ((NameExpr)function).getName().isLocal()) {
+      // Calling a local directly doesn't let it escape.
+      int local = ((NameExpr)function).getName().getLocalIndex();
+      List<CallExpr> calls = mCalls.get(local);
+      if (calls == null) {
+        calls = new ArrayList<CallExpr>();
+        mCalls.put(local, calls);
+      }
+      calls.add(expr);
+    } else {
+      function.accept(this, true);
+    }
+    
+    for (Expr arg : expr.getArgs()) arg.accept(this, true);
+  }
+
+  @Override
+  public void visit(FunctionExpr expr, Boolean used) {
+    mContainsFunction = true;
+    
+    // Any local that this function captures escapes into it.
+    for (UpvarRef upvar : expr.getUpvars()) {
+      if (upvar.isLocal()) mEscaped.add(upvar.getIndex());
+    }
+    
+    // Analyze it on its own.
+    EscapeAnalyzer analyzer = new EscapeAnalyzer();
+    analyzer.analyzeFunction(expr);
+    if (!analyzer.mContainsFunction) mLeafFunctions.add(expr);
+  }
+
+  @Override
+  public void visit(IfExpr expr, Boolean used) {
+    expr.getCondition().accept(this, true);
+    expr.getThenArm().accept(this, used);
+    expr.getElseArm().accept(this, used);
+  }
+
+  @Override
+  public void visit(NameExpr expr, Boolean used) {
+    if (expr.getName().isLocal()) {
+      mEscaped.add(expr.getName().getLocalIndex());
+    }
+  }
+
+  @Override
+  public void visit(SequenceExpr expr, Boolean used) {
+    List<Expr> exprs = expr.getExpressions();
+    for (int i = 0; i < exprs.size(); i++) {
+      // Only the last expression's value is used.
+      exprs.get(i).accept(this, used && (i == exprs.size() - 1));
+    }
+  }
+
+  @Override
+  public void visit(StringExpr expr, Boolean used) {
+    // Do nothing.
+  }
+
+  @Override
+  public void visit(VarExpr expr, Boolean used) {
+    // If the var's value is used, the function could go anywhere.
+    if (!used && (expr.getValue() instanceof FunctionExpr)) {
+      mCandidates.put(expr.getName().getLocalIndex(),
+          (FunctionExpr)expr.getValue());
+    }
+    
+    expr.getValue().accept(this, true);
+  }
+
+  private final Map<Integer, FunctionExpr> mCandidates =
+      new HashMap<Integer, FunctionExpr>();
+  private final Map<Integer, List<CallExpr>> mCalls =
+      new HashMap<Integer, List<CallExpr>>();
+  private final Set<Integer> mEscaped = new HashSet<Integer>();
+  private final Set<FunctionExpr> mLeafFunctions = new HashSet<FunctionExpr>();
+  private boolean mContainsFunction = false;
+}
@@ -0,0 +1,16 @@
+package com.stuffwithstuff.bulfinch;
+
+/**
+ * Receives notifications from a VM as it executes code. A VM with a listener
+ * attached runs a separate, slower interpreter loop, so this costs nothing
+ * when no listener is used.
+ */
+public interface ExecutionListener {
+  /**
+   * Called after the VM has executed an instruction. The VM's stack and
+   * frames reflect the state after the op.
+   * @param function The function containing the op.
+   * @param ip       The index of the op in the function's code.
+   */
+  void executed(VM vm, Function function, int ip, Op op);
+}
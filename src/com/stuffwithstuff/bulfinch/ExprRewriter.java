@@ -0,0 +1,80 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a copy of an expression tree. Subclasses override the visit methods
+ * for the kinds of expressions they want to change. The copy is unresolved,
+ * so this must run before the NameResolver.
+ */
+public class ExprRewriter implements ExprVisitor<Void> {
+  /** Gets the rewritten copy of the given expression. */
+  public Expr rewrite(Expr expr) {
+    expr.accept(this, null);
+    
+    Expr result = mResult;
+    mResult = null;
+    return result;
+  }
+  
+  public List<Expr> rewrite(List<Expr> exprs) {
+    List<Expr> results = new ArrayList<Expr>();
+    for (Expr expr : exprs) {
+      results.add(rewrite(expr));
+    }
+    
+    return results;
+  }
+  
+  @Override
+  public void visit(AssignExpr expr, Void dummy) {
+    result(new AssignExpr(expr.getName().getIdentifier(),
+        rewrite(expr.getValue())));
+  }
+
+  @Override
+  public void visit(CallExpr expr, Void dummy) {
+    result(new CallExpr(rewrite(expr.getFunction()),
+        rewrite(expr.getArgs())));
+  }
+
+  @Override
+  public void visit(FunctionExpr expr, Void dummy) {
+    result(new FunctionExpr(expr.getParameters(), rewrite(expr.getBody())));
+  }
+
+  @Override
+  public void visit(IfExpr expr, Void dummy) {
+    result(new IfExpr(rewrite(expr.getCondition()),
+        rewrite(expr.getThenArm()), rewrite(expr.getElseArm())));
+  }
+
+  @Override
+  public void visit(NameExpr expr, Void dummy) {
+    result(new NameExpr(expr.getName().getIdentifier()));
+  }
+
+  @Override
+  public void visit(SequenceExpr expr, Void dummy) {
+    result(new SequenceExpr(rewrite(expr.getExpressions())));
+  }
+
+  @Override
+  public void visit(StringExpr expr, Void dummy) {
+    result(new StringExpr(expr.getValue()));
+  }
+
+  @Override
+  public void visit(VarExpr expr, Void dummy) {
+    result(new VarExpr(expr.getName().getIdentifier(),
+        rewrite(expr.getValue())));
+  }
+  
+  /** Sets the result of rewriting the expression being visited. */
+  protected void result(Expr expr) {
+    mResult = expr;
+  }
+  
+  private Expr mResult;
+}
@@ -1,7 +1,11 @@
 package com.stuffwithstuff.bulfinch;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A compiled function.
@@ -12,16 +16,26 @@ public class Function {
     mLocals = locals;
     mUpvarNames = upvarNames;
     mConstants = new ArrayList<Object>();
-    mCode = new ArrayList<Op>();
+    mConstantIndexes = new HashMap<Object, Integer>();
+    mCode = new long[16];
   }
 
   public String getDebugName() {
     return mDebugName;
   }
 
+  /**
+   * Adds the given constant to the constant pool if it isn't already in it.
+   * @return The index of the constant.
+   */
   public int addConstant(Object constant) {
-    // TODO(bob): Check for duplicates.
+    Expect.state(!isLinked(), "Can't add constants to a linked function.");
+
+    Integer index = mConstantIndexes.get(constant);
+    if (index != null) return index;
+
     mConstants.add(constant);
+    mConstantIndexes.put(constant, mConstants.size() - 1);
     return mConstants.size() - 1;
   }
 
@@ -49,10 +63,96 @@ public class Function {
     mNumUpvars = numUpvars;
   }
 
-  public List<Op> getCode() {
+  /**
+   * Notes that a function defined in this one reads or writes the given
+   * register directly while this function is calling it.
+   */
+  public void addCapturedRegister(int register) {
+    mCapturedRegisters.set(register);
+  }
+  
+  /**
+   * Gets the registers that functions defined in this one access directly.
+   * Their values may be used at any time.
+   */
+  public BitSet getCapturedRegisters() {
+    return mCapturedRegisters;
+  }
+
+  /**
+   * Gets the closure for this function. A function with no upvars doesn't
+   * capture anything, so every closure of it would be the same. Instead of
+   * creating new ones, they all share this one, which is created when the
+   * function is linked.
+   */
+  public Closure getSharedClosure() {
+    Expect.state(mSharedClosure != null,
+        "Only linked functions without upvars have a shared closure.");
+
+    return mSharedClosure;
+  }
+
+  /**
+   * Gets the packed bytecode for this function. The array may be larger than
+   * the actual code, so use getCodeSize() to see how much of it is used.
+   */
+  public long[] getCode() {
     return mCode;
   }
 
+  public int getCodeSize() {
+    return mCodeSize;
+  }
+  
+  /** Gets a decoded view of the op at the given index. */
+  public Op getOp(int index) {
+    return Op.decode(mCode[index]);
+  }
+
+  /**
+   * Appends an op to the end of the function's code.
+   * @return The index of the new op.
+   */
+  public int write(int opcode, int a, int b, int c) {
+    if (mCodeSize == mCode.length) {
+      mCode = Arrays.copyOf(mCode, mCode.length * 2);
+    }
+    
+    mCode[mCodeSize] = Op.encode(opcode, a, b, c);
+    return mCodeSize++;
+  }
+  
+  public boolean isLinked() {
+    return mGlobalNames != null;
+  }
+
+  /**
+   * Marks this function as linked. Its LOAD_GLOBAL ops now refer to slots
+   * in the given global table instead of to constants.
+   */
+  public void link(String[] globalNames) {
+    Expect.state(!isLinked(), "Function is already linked.");
+    mGlobalNames = globalNames;
+
+    // No more constants can be added, so we don't need to look them up now.
+    mConstants.trimToSize();
+    mConstantIndexes = null;
+
+    // The function is finished, so its one closure can be made now.
+    if (mNumUpvars == 0) mSharedClosure = Closure.create(this);
+  }
+
+  /** Replaces all of the function's code. */
+  public void setCode(long[] code, int size) {
+    mCode = code;
+    mCodeSize = size;
+  }
+
+  /** Replaces the op at the given index. */
+  public void patch(int index, int opcode, int a, int b, int c) {
+    mCode[index] = Op.encode(opcode, a, b, c);
+  }
+
   public void dump() {
     System.out.println(mDebugName);
 
@@ -90,8 +190,8 @@ public class Function {
 
     // Dump the code.
     System.out.println("code");
-    for (int i = 0; i < mCode.size(); i++) {
-      Op op = mCode.get(i);
+    for (int i = 0; i < mCodeSize; i++) {
+      Op op = getOp(i);
       switch (op.opcode) {
       case Op.CONSTANT:
         System.out.println(String.format("  CONSTANT      %s -> %s",
@@ -108,6 +208,26 @@ public class Function {
             prettyReg(op.a), op.b, op.c));
         break;
 
+      case Op.TAIL_CALL:
+        System.out.println(String.format("  TAIL_CALL     %s %s",
+            op.a, op.b));
+        break;
+
+      case Op.CALL_GLOBAL:
+        System.out.println(String.format("  CALL_GLOBAL   %s <- %s %s",
+            prettyReg(op.a), prettyGlobal(op.b), op.c));
+        break;
+
+      case Op.RETURN_CALL:
+        System.out.println(String.format("  RETURN_CALL   %s <- %s %s",
+            prettyReg(op.a), op.b, op.c));
+        break;
+
+      case Op.CONSTANT_RETURN:
+        System.out.println(String.format("  CONSTANT_RETURN %s",
+            prettyConst(op.a)));
+        break;
+
       case Op.RETURN:
         System.out.println(String.format("  RETURN        %s", prettyReg(op.a)));
         break;
@@ -122,7 +242,7 @@ public class Function {
 
       case Op.LOAD_GLOBAL:
         System.out.println(String.format("  LOAD_GLOBAL   %s -> %s",
-            prettyConst(op.a), prettyReg(op.b)));
+            prettyGlobal(op.a), prettyReg(op.b)));
         break;
 
       case Op.LOAD_UPVAR:
@@ -135,6 +255,36 @@ public class Function {
             prettyUpvar(op.a), prettyReg(op.b)));
         break;
 
+      case Op.LOAD_VALUE_UPVAR:
+        System.out.println(String.format("  LOAD_VALUE_UPVAR %s -> %s",
+            prettyUpvar(op.a), prettyReg(op.b)));
+        break;
+
+      case Op.LOAD_PARENT:
+        System.out.println(String.format("  LOAD_PARENT   %s -> %s",
+            op.a, prettyReg(op.b)));
+        break;
+
+      case Op.STORE_PARENT:
+        System.out.println(String.format("  STORE_PARENT  %s <- %s",
+            op.a, prettyReg(op.b)));
+        break;
+
+      case Op.NEW_ENV:
+        System.out.println(String.format("  NEW_ENV       %s %s",
+            op.a, (op.b == 1) ? "linked" : "unlinked"));
+        break;
+
+      case Op.LOAD_ENV:
+        System.out.println(String.format("  LOAD_ENV      %s.%s -> %s",
+            op.a, op.b, prettyReg(op.c)));
+        break;
+
+      case Op.STORE_ENV:
+        System.out.println(String.format("  STORE_ENV     %s.%s <- %s",
+            op.a, op.b, prettyReg(op.c)));
+        break;
+
       case Op.CLOSURE:
         System.out.println(String.format("  CLOSURE       %s -> %s",
             prettyConst(op.a), prettyReg(op.b)));
@@ -145,6 +295,15 @@ public class Function {
             prettyReg(op.a)));
         break;
 
+      case Op.ADD_VALUE_UPVAR:
+        System.out.println(String.format("    ADD_VALUE_UPVAR  %s",
+            prettyReg(op.a)));
+        break;
+
+      case Op.ADD_ENV:
+        System.out.println("    ADD_ENV");
+        break;
+
       case Op.ADD_OUTER_UPVAR:
         System.out.println(String.format("    ADD_OUTER_UPVAR  %s",
             prettyUpvar(op.a)));
@@ -175,6 +334,14 @@ public class Function {
     return String.format("%s (%s)", constant, mConstants.get(constant));
   }
 
+  private String prettyGlobal(int global) {
+    if (isLinked()) {
+      return String.format("global %s (%s)", global, mGlobalNames[global]);
+    }
+
+    return prettyConst(global);
+  }
+
   private String prettyReg(int register) {
     if (register < mLocals.size()) {
       return String.format("%s (%s)", register, mLocals.get(register));
@@ -194,8 +361,13 @@ public class Function {
   private final String mDebugName;
   private final List<String> mLocals;
   private final List<String> mUpvarNames;
-  private List<Object> mConstants;
-  private List<Op> mCode;
+  private final ArrayList<Object> mConstants;
+  private Map<Object, Integer> mConstantIndexes;
+  private long[] mCode;
+  private int mCodeSize;
   private int mNumRegisters;
   private int mNumUpvars;
+  private String[] mGlobalNames;
+  private Closure mSharedClosure;
+  private final BitSet mCapturedRegisters = new BitSet();
 }
@@ -32,6 +32,40 @@ public class FunctionExpr implements Expr {
     mUpvars = upvars;
   }
   
+  /**
+   * Gets the indexes of the locals that closures in this function capture.
+   */
+  public List<Integer> getCapturedLocals() {
+    Expect.state(mCapturedLocals != null, "Unresolved function.");
+    return mCapturedLocals;
+  }
+  
+  public void setCapturedLocals(List<Integer> locals) {
+    mCapturedLocals = locals;
+  }
+  
+  /**
+   * When using linked environments, gets the slot in this function's
+   * environment record that holds the given local, or -1 if the local is
+   * just kept in a register.
+   */
+  public int getEnvironmentSlot(int local) {
+    return getCapturedLocals().indexOf(local);
+  }
+  
+  /**
+   * True if this function is only ever called directly by the function that
+   * defines it. It reads the variables it uses from that function's frame
+   * instead of capturing them. See EscapeAnalyzer.
+   */
+  public boolean isNonEscaping() {
+    return mNonEscaping;
+  }
+  
+  public void markNonEscaping() {
+    mNonEscaping = true;
+  }
+  
   public <A> void accept(ExprVisitor<A> visitor, A arg) {
     visitor.visit(this, arg);
   }
@@ -40,4 +74,6 @@ public class FunctionExpr implements Expr {
   private final Expr mBody;
   private List<String> mLocals;
   private List<UpvarRef> mUpvars;
+  private boolean mNonEscaping;
+  private List<Integer> mCapturedLocals;
 }
@@ -0,0 +1,327 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+/**
+ * Replaces calls to small top-level functions with the bodies of the
+ * functions. The arguments are stored in new vars that take the place of
+ * the parameters, and the vars in the inlined body get new names too. For
+ * example:
+ *
+ *  fn second(a, b) {
+ *    b
+ *  }
+ *
+ *  fn main() {
+ *    second("a", "b")
+ *  }
+ *
+ * becomes:
+ *
+ *  fn main() {
+ *    var second:a:1 = "a"
+ *    var second:b:1 = "b"
+ *    second:b:1
+ *  }
+ *
+ * A function is inlined when:
+ *
+ * - Its body is no bigger than INLINE_BUDGET expressions.
+ * - It doesn't contain function literals, so nothing in it can capture the
+ *   new vars.
+ * - The call passes as many arguments as it has parameters.
+ * - It isn't already being inlined, so recursion stops.
+ * - None of the globals it uses, nor the function itself, are hidden by a
+ *   local with the same name anywhere in the function being inlined into.
+ * - The function being inlined into hasn't already grown by GROWTH_BUDGET
+ *   expressions. Inlining is transitive, so without this a chain of small
+ *   functions that each call the next twice would grow exponentially.
+ *
+ * Since this works on unresolved expressions, it runs before the
+ * NameResolver. The new names contain ":", so they can't collide with names
+ * in the program.
+ */
+public class Inliner extends ExprRewriter {
+  /**
+   * Inlines small functions into every function in the program.
+   * @return The rewritten program.
+   */
+  public static Map<String, FunctionExpr> inline(
+      Map<String, FunctionExpr> program, CompilerOptions options) {
+    Map<String, FunctionExpr> candidates = new HashMap<String, FunctionExpr>();
+    for (Entry<String, FunctionExpr> entry : program.entrySet()) {
+      addCandidate(candidates, entry.getKey(), entry.getValue(), options);
+    }
+
+    Map<String, FunctionExpr> inlined = new HashMap<String, FunctionExpr>();
+    for (Entry<String, FunctionExpr> entry : program.entrySet()) {
+      inlined.put(entry.getKey(),
+          inline(entry.getKey(), entry.getValue(), candidates));
+    }
+
+    return inlined;
+  }
+
+  /**
+   * Adds the top-level function to the functions that can be inlined, if it
+   * is small enough and inlining it is allowed.
+   */
+  public static void addCandidate(Map<String, FunctionExpr> candidates,
+      String name, FunctionExpr function, CompilerOptions options) {
+    if (options.canInline(name) && isSmall(function)) {
+      candidates.put(name, function);
+    }
+  }
+
+  /**
+   * Inlines the candidates into a single top-level function. When a program
+   * is compiled a function at a time, the candidates are the functions seen
+   * so far, so calls to later functions aren't inlined.
+   * @return The rewritten function.
+   */
+  public static FunctionExpr inline(String name, FunctionExpr function,
+      Map<String, FunctionExpr> candidates) {
+    Inliner inliner = new Inliner(candidates);
+    collectNames(function, inliner.mDeclared);
+
+    // Don't inline a function into itself.
+    inliner.mInlining.add(name);
+    return (FunctionExpr)inliner.rewrite(function);
+  }
+
+  @Override
+  public void visit(CallExpr expr, Void dummy) {
+    FunctionExpr callee = findCallee(expr);
+    if (callee == null) {
+      super.visit(expr, dummy);
+      return;
+    }
+
+    String name = ((NameExpr)expr.getFunction()).getName().getIdentifier();
+    mNumInlined++;
+    mGrowth += size(callee.getBody());
+
+    // Evaluate the arguments into new vars in place of the parameters.
+    List<Expr> exprs = new ArrayList<Expr>();
+    Map<String, String> renames = new HashMap<String, String>();
+    for (int i = 0; i < callee.getParameters().size(); i++) {
+      String param = callee.getParameters().get(i);
+      String renamed = name + ":" + param + ":" + mNumInlined;
+      renames.put(param, renamed);
+      exprs.add(new VarExpr(renamed, rewrite(expr.getArgs().get(i))));
+    }
+
+    // Give the callee's vars new names too.
+    Set<String> vars = new HashSet<String>();
+    collectNames(callee.getBody(), vars);
+    for (String var : vars) {
+      renames.put(var, name + ":" + var + ":" + mNumInlined);
+    }
+
+    // Inline anything the body calls too.
+    mInlining.add(name);
+    Expr body = new Renamer(renames).rewrite(callee.getBody());
+    exprs.add(rewrite(body));
+    mInlining.remove(name);
+
+    if (exprs.size() == 1) {
+      result(exprs.get(0));
+    } else {
+      result(new SequenceExpr(exprs));
+    }
+  }
+
+  private Inliner(Map<String, FunctionExpr> candidates) {
+    mCandidates = candidates;
+  }
+
+  /**
+   * Gets the function that the call can be replaced with, or null if it
+   * can't be inlined.
+   */
+  private FunctionExpr findCallee(CallExpr expr) {
+    if (!(expr.getFunction() instanceof NameExpr)) return null;
+
+    String name = ((NameExpr)expr.getFunction()).getName().getIdentifier();
+    FunctionExpr callee = mCandidates.get(name);
+    if (callee == null) return null;
+
+    if (mInlining.contains(name)) return null;
+    if (mDeclared.contains(name)) return null;
+    if (expr.getArgs().size() != callee.getParameters().size()) return null;
+    if (mGrowth + size(callee.getBody()) > GROWTH_BUDGET) return null;
+
+    // The globals that the callee uses have to still be globals here.
+    Set<String> used = new HashSet<String>();
+    collectUses(callee.getBody(), used);
+    used.removeAll(callee.getParameters());
+    Set<String> vars = new HashSet<String>();
+    collectNames(callee.getBody(), vars);
+    used.removeAll(vars);
+
+    for (String global : used) {
+      if (mDeclared.contains(global)) return null;
+    }
+
+    return callee;
+  }
+
+  /**
+   * Returns true if the function is small enough to inline. Since function
+   * literals are too big, this also means it doesn't contain any.
+   */
+  private static boolean isSmall(FunctionExpr function) {
+    return size(function.getBody()) <= INLINE_BUDGET;
+  }
+
+  /**
+   * Counts the expressions in the given one. Function literals count as too
+   * many to inline.
+   */
+  private static int size(Expr expr) {
+    if (expr instanceof AssignExpr) {
+      return 1 + size(((AssignExpr)expr).getValue());
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      int size = 1 + size(call.getFunction());
+      for (Expr arg : call.getArgs()) size += size(arg);
+      return size;
+    } else if (expr instanceof FunctionExpr) {
+      return INLINE_BUDGET + 1;
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      return 1 + size(ifExpr.getCondition()) + size(ifExpr.getThenArm()) +
+          size(ifExpr.getElseArm());
+    } else if (expr instanceof SequenceExpr) {
+      int size = 0;
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        size += size(inner);
+      }
+      return size;
+    } else if (expr instanceof VarExpr) {
+      return 1 + size(((VarExpr)expr).getValue());
+    }
+
+    // Names and strings.
+    return 1;
+  }
+
+  /**
+   * Adds the names of the parameters and vars declared anywhere in the
+   * expression, including in nested functions.
+   */
+  private static void collectNames(Expr expr, Set<String> declared) {
+    if (expr instanceof AssignExpr) {
+      collectNames(((AssignExpr)expr).getValue(), declared);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      collectNames(call.getFunction(), declared);
+      for (Expr arg : call.getArgs()) collectNames(arg, declared);
+    } else if (expr instanceof FunctionExpr) {
+      FunctionExpr function = (FunctionExpr)expr;
+      declared.addAll(function.getParameters());
+      collectNames(function.getBody(), declared);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      collectNames(ifExpr.getCondition(), declared);
+      collectNames(ifExpr.getThenArm(), declared);
+      collectNames(ifExpr.getElseArm(), declared);
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        collectNames(inner, declared);
+      }
+    } else if (expr instanceof VarExpr) {
+      VarExpr var = (VarExpr)expr;
+      declared.add(var.getName().getIdentifier());
+      collectNames(var.getValue(), declared);
+    }
+  }
+
+  /** Adds every name that the expression reads or assigns. */
+  private static void collectUses(Expr expr, Set<String> used) {
+    if (expr instanceof AssignExpr) {
+      used.add(((AssignExpr)expr).getName().getIdentifier());
+      collectUses(((AssignExpr)expr).getValue(), used);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      collectUses(call.getFunction(), used);
+      for (Expr arg : call.getArgs()) collectUses(arg, used);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      collectUses(ifExpr.getCondition(), used);
+      collectUses(ifExpr.getThenArm(), used);
+      collectUses(ifExpr.getElseArm(), used);
+    } else if (expr instanceof NameExpr) {
+      used.add(((NameExpr)expr).getName().getIdentifier());
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        collectUses(inner, used);
+      }
+    } else if (expr instanceof VarExpr) {
+      collectUses(((VarExpr)expr).getValue(), used);
+    }
+  }
+
+  /**
+   * Copies an inlined body, renaming its parameters and vars. The body has
+   * no function literals, so there are no inner scopes to worry about.
+   */
+  private static class Renamer extends ExprRewriter {
+    Renamer(Map<String, String> renames) {
+      mRenames = renames;
+    }
+
+    @Override
+    public void visit(AssignExpr expr, Void dummy) {
+      result(new AssignExpr(rename(expr.getName()),
+          rewrite(expr.getValue())));
+    }
+
+    @Override
+    public void visit(NameExpr expr, Void dummy) {
+      result(new NameExpr(rename(expr.getName())));
+    }
+
+    @Override
+    public void visit(VarExpr expr, Void dummy) {
+      result(new VarExpr(rename(expr.getName()), rewrite(expr.getValue())));
+    }
+
+    private String rename(Name name) {
+      String renamed = mRenames.get(name.getIdentifier());
+      if (renamed != null) return renamed;
+      return name.getIdentifier();
+    }
+
+    private final Map<String, String> mRenames;
+  }
+
+  /**
+   * The most expressions a function's body can have and still be inlined.
+   */
+  private static final int INLINE_BUDGET = 8;
+
+  /**
+   * The most expressions that inlining can add to a single top-level
+   * function, counting everything inlined into the inlined bodies too.
+   */
+  private static final int GROWTH_BUDGET = 64;
+
+  private final Map<String, FunctionExpr> mCandidates;
+
+  // Every name declared anywhere in the function being inlined into.
+  private final Set<String> mDeclared = new HashSet<String>();
+
+  // The functions whose bodies are being inlined right now.
+  private final Set<String> mInlining = new HashSet<String>();
+  private int mNumInlined = 0;
+
+  // How many expressions the inlined bodies have added so far.
+  private int mGrowth = 0;
+}
@@ -0,0 +1,410 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+/**
+ * Lifts local functions out into new top-level functions. The variables they
+ * close over become extra parameters, and every call passes them in. Then
+ * there's no closure to create and nothing to capture. For example:
+ * 
+ *  fn main() {
+ *    var a = "a"
+ *    var foo = fn(b) {
+ *      a
+ *    }
+ *    foo("b")
+ *  }
+ * 
+ * becomes:
+ * 
+ *  fn main() {
+ *    var a = "a"
+ *    main:foo("b", a)
+ *  }
+ * 
+ *  fn main:foo(b, a) {
+ *    a
+ *  }
+ * 
+ * This only works if every call to the function is known and the variables
+ * it uses never change, so a function is lifted when:
+ * 
+ * - It is the initializer of a var whose own value isn't used.
+ * - The var is only ever used as the function in a call, and each call
+ *   passes as many arguments as the function has parameters.
+ * - None of the variables it uses from the defining function are ever
+ *   assigned, and it doesn't use anything from functions further out.
+ * - It doesn't contain function literals of its own.
+ * 
+ * Since this works on unresolved expressions, it has to be careful to see
+ * names the same way the NameResolver will. When in doubt, it doesn't lift.
+ * The names of lifted functions contain ":", so they can't collide with
+ * names in the program.
+ */
+public class LambdaLifter extends ExprRewriter {
+  /**
+   * Lifts the local functions in each function in the program.
+   * @return The rewritten program, including the lifted functions.
+   */
+  public static Map<String, FunctionExpr> lift(
+      Map<String, FunctionExpr> program) {
+    Map<String, FunctionExpr> lifted = new HashMap<String, FunctionExpr>();
+    for (Entry<String, FunctionExpr> entry : program.entrySet()) {
+      LambdaLifter lifter = new LambdaLifter(entry.getKey(),
+          new HashSet<String>(), program.keySet(), lifted);
+      lifted.put(entry.getKey(), lifter.liftFunction(entry.getValue()));
+    }
+    
+    return lifted;
+  }
+
+  /**
+   * Lifts the local functions in a single top-level function, for when a
+   * program is compiled a function at a time.
+   * @return The rewritten function and the functions lifted out of it.
+   */
+  public static Map<String, FunctionExpr> lift(String name,
+      FunctionExpr function) {
+    Map<String, FunctionExpr> lifted = new HashMap<String, FunctionExpr>();
+    LambdaLifter lifter = new LambdaLifter(name, new HashSet<String>(),
+        Collections.singleton(name), lifted);
+    lifted.put(name, lifter.liftFunction(function));
+
+    return lifted;
+  }
+
+  @Override
+  public void visit(CallExpr expr, Void dummy) {
+    Candidate candidate = mLiftedCalls.get(expr);
+    if (candidate == null) {
+      super.visit(expr, dummy);
+      return;
+    }
+    
+    // Call the lifted function directly and pass in what it used to capture.
+    List<Expr> args = rewrite(expr.getArgs());
+    for (String name : candidate.captured) {
+      args.add(new NameExpr(name));
+    }
+    
+    result(new CallExpr(new NameExpr(candidate.liftedName), args));
+  }
+
+  @Override
+  public void visit(FunctionExpr expr, Void dummy) {
+    // Anything declared in this function or further out may be captured by
+    // the nested one.
+    Set<String> enclosing = new HashSet<String>(mEnclosingNames);
+    enclosing.addAll(mAllNames);
+    
+    LambdaLifter lifter = new LambdaLifter(mTopLevelName, enclosing,
+        mTopLevelNames, mProgram);
+    result(lifter.liftFunction(expr));
+  }
+
+  @Override
+  public void visit(VarExpr expr, Void dummy) {
+    Candidate candidate = mLiftedVars.get(expr);
+    if (candidate == null) {
+      super.visit(expr, dummy);
+      return;
+    }
+    
+    // The var's value isn't used and nothing refers to it anymore, so all
+    // that's left is the lifted function itself. That compiles to nothing.
+    result(new NameExpr(candidate.liftedName));
+  }
+  
+  private LambdaLifter(String topLevelName, Set<String> enclosingNames,
+      Set<String> topLevelNames, Map<String, FunctionExpr> program) {
+    mTopLevelName = topLevelName;
+    mEnclosingNames = enclosingNames;
+    mTopLevelNames = topLevelNames;
+    mProgram = program;
+  }
+  
+  private FunctionExpr liftFunction(FunctionExpr function) {
+    mDeclared.addAll(function.getParameters());
+    mAllNames.addAll(function.getParameters());
+    
+    // The function's value is always used since it is returned.
+    scan(function.getBody(), true);
+    
+    for (Candidate candidate : mCandidates.values()) {
+      if (canLift(candidate)) lift(candidate);
+    }
+    
+    return new FunctionExpr(function.getParameters(),
+        rewrite(function.getBody()));
+  }
+  
+  /**
+   * Walks the function's body in the same order that the NameResolver does,
+   * looking for local functions that can be lifted and anything that would
+   * keep them from being lifted.
+   */
+  private void scan(Expr expr, boolean used) {
+    if (expr instanceof AssignExpr) {
+      AssignExpr assign = (AssignExpr)expr;
+      mention(assign.getName().getIdentifier());
+      mAssigned.add(assign.getName().getIdentifier());
+      scan(assign.getValue(), true);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      Expr function = call.getFunction();
+      Candidate candidate = null;
+      if (function instanceof NameExpr) {
+        candidate = mCandidates.get(
+            ((NameExpr)function).getName().getIdentifier());
+      }
+      
+      if (candidate != null) {
+        // Calling it directly is fine.
+        candidate.calls.add(call);
+      } else {
+        scan(function, true);
+      }
+      
+      for (Expr arg : call.getArgs()) scan(arg, true);
+    } else if (expr instanceof FunctionExpr) {
+      // Don't try to figure out the nested function's scopes. Just assume
+      // anything it mentions is one of ours.
+      FunctionExpr function = (FunctionExpr)expr;
+      Set<String> names = new HashSet<String>(function.getParameters());
+      collectNames(function.getBody(), names, mAssigned);
+      for (String name : names) mention(name);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      scan(ifExpr.getCondition(), true);
+      scan(ifExpr.getThenArm(), used);
+      scan(ifExpr.getElseArm(), used);
+    } else if (expr instanceof NameExpr) {
+      mention(((NameExpr)expr).getName().getIdentifier());
+    } else if (expr instanceof SequenceExpr) {
+      // Only the last expression's value is used.
+      List<Expr> exprs = ((SequenceExpr)expr).getExpressions();
+      for (int i = 0; i < exprs.size(); i++) {
+        scan(exprs.get(i), used && (i == exprs.size() - 1));
+      }
+    } else if (expr instanceof VarExpr) {
+      VarExpr var = (VarExpr)expr;
+      String name = var.getName().getIdentifier();
+      
+      // If the name is declared twice, the NameResolver resolves both to the
+      // first one, which is too confusing to lift.
+      boolean redeclared = mDeclared.contains(name);
+      if (redeclared) mention(name);
+      
+      mDeclared.add(name);
+      mAllNames.add(name);
+      
+      if (!used && !redeclared && (var.getValue() instanceof FunctionExpr)) {
+        Candidate candidate = findCaptures(var);
+        if (candidate != null) {
+          mCandidates.put(name, candidate);
+          
+          // Passing captured variables as arguments means they escape.
+          for (String captured : candidate.captured) mention(captured);
+          return;
+        }
+      }
+      
+      scan(var.getValue(), true);
+    }
+  }
+  
+  /**
+   * Figures out which of this function's locals the function the var is
+   * initialized with uses. Returns null if it can't be lifted.
+   */
+  private Candidate findCaptures(VarExpr var) {
+    FunctionExpr function = (FunctionExpr)var.getValue();
+    
+    Set<String> free = new LinkedHashSet<String>();
+    List<String> declared = new ArrayList<String>(function.getParameters());
+    if (!findFreeNames(function.getBody(), declared, free)) return null;
+    
+    Candidate candidate = new Candidate(var);
+    for (String name : free) {
+      // Something declared after it was used from outside.
+      if (declared.contains(name)) return null;
+      
+      if (mDeclared.contains(name)) {
+        // Recursion means the var is used as a value.
+        if (name.equals(var.getName().getIdentifier())) return null;
+        
+        candidate.captured.add(name);
+      } else if (mEnclosingNames.contains(name)) {
+        // It would be an upvar of this function.
+        return null;
+      }
+      
+      // Otherwise, it's a global.
+    }
+    
+    return candidate;
+  }
+  
+  /**
+   * Finds the names that a function's body uses but doesn't declare. Returns
+   * false if it assigns one of them or contains a function literal.
+   */
+  private boolean findFreeNames(Expr expr, List<String> declared,
+      Set<String> free) {
+    if (expr instanceof AssignExpr) {
+      AssignExpr assign = (AssignExpr)expr;
+      if (!declared.contains(assign.getName().getIdentifier())) return false;
+      return findFreeNames(assign.getValue(), declared, free);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      if (!findFreeNames(call.getFunction(), declared, free)) return false;
+      for (Expr arg : call.getArgs()) {
+        if (!findFreeNames(arg, declared, free)) return false;
+      }
+      return true;
+    } else if (expr instanceof FunctionExpr) {
+      return false;
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      return findFreeNames(ifExpr.getCondition(), declared, free) &&
+          findFreeNames(ifExpr.getThenArm(), declared, free) &&
+          findFreeNames(ifExpr.getElseArm(), declared, free);
+    } else if (expr instanceof NameExpr) {
+      String name = ((NameExpr)expr).getName().getIdentifier();
+      if (!declared.contains(name)) free.add(name);
+      return true;
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        if (!findFreeNames(inner, declared, free)) return false;
+      }
+      return true;
+    } else if (expr instanceof VarExpr) {
+      VarExpr var = (VarExpr)expr;
+      declared.add(var.getName().getIdentifier());
+      return findFreeNames(var.getValue(), declared, free);
+    }
+    
+    return true;
+  }
+  
+  /** Adds every name used in the expression, and the ones it assigns. */
+  private void collectNames(Expr expr, Set<String> names,
+      Set<String> assigned) {
+    if (expr instanceof AssignExpr) {
+      AssignExpr assign = (AssignExpr)expr;
+      names.add(assign.getName().getIdentifier());
+      assigned.add(assign.getName().getIdentifier());
+      collectNames(assign.getValue(), names, assigned);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      collectNames(call.getFunction(), names, assigned);
+      for (Expr arg : call.getArgs()) collectNames(arg, names, assigned);
+    } else if (expr instanceof FunctionExpr) {
+      FunctionExpr function = (FunctionExpr)expr;
+      names.addAll(function.getParameters());
+      collectNames(function.getBody(), names, assigned);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      collectNames(ifExpr.getCondition(), names, assigned);
+      collectNames(ifExpr.getThenArm(), names, assigned);
+      collectNames(ifExpr.getElseArm(), names, assigned);
+    } else if (expr instanceof NameExpr) {
+      names.add(((NameExpr)expr).getName().getIdentifier());
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        collectNames(inner, names, assigned);
+      }
+    } else if (expr instanceof VarExpr) {
+      VarExpr var = (VarExpr)expr;
+      names.add(var.getName().getIdentifier());
+      collectNames(var.getValue(), names, assigned);
+    }
+  }
+  
+  /** Notes that a name is used as something other than a function to call. */
+  private void mention(String name) {
+    if (mCandidates.containsKey(name)) mRejected.add(name);
+  }
+  
+  private boolean canLift(Candidate candidate) {
+    if (mRejected.contains(candidate.var.getName().getIdentifier())) {
+      return false;
+    }
+    
+    for (String captured : candidate.captured) {
+      if (mAssigned.contains(captured)) return false;
+    }
+    
+    // The captured values are passed after the parameters, so each call has
+    // to fill in all of the parameters.
+    FunctionExpr function = (FunctionExpr)candidate.var.getValue();
+    for (CallExpr call : candidate.calls) {
+      if (call.getArgs().size() != function.getParameters().size()) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  private void lift(Candidate candidate) {
+    FunctionExpr function = (FunctionExpr)candidate.var.getValue();
+    
+    // Pick a name no one else has.
+    String base = mTopLevelName + ":" +
+        candidate.var.getName().getIdentifier();
+    candidate.liftedName = base;
+    for (int i = 2; mTopLevelNames.contains(candidate.liftedName) ||
+        mProgram.containsKey(candidate.liftedName); i++) {
+      candidate.liftedName = base + ":" + i;
+    }
+    
+    List<String> params = new ArrayList<String>(function.getParameters());
+    params.addAll(candidate.captured);
+    mProgram.put(candidate.liftedName, new FunctionExpr(params,
+        new ExprRewriter().rewrite(function.getBody())));
+    
+    mLiftedVars.put(candidate.var, candidate);
+    for (CallExpr call : candidate.calls) {
+      mLiftedCalls.put(call, candidate);
+    }
+  }
+  
+  /** A local function that may be lifted. */
+  private static class Candidate {
+    Candidate(VarExpr var) {
+      this.var = var;
+    }
+    
+    final VarExpr var;
+    final List<String> captured = new ArrayList<String>();
+    final List<CallExpr> calls = new ArrayList<CallExpr>();
+    String liftedName;
+  }
+  
+  private final String mTopLevelName;
+  private final Set<String> mEnclosingNames;
+  private final Set<String> mTopLevelNames;
+  private final Map<String, FunctionExpr> mProgram;
+  
+  // The locals declared so far, as the NameResolver would see them.
+  private final List<String> mDeclared = new ArrayList<String>();
+  // Every local declared anywhere in the function.
+  private final Set<String> mAllNames = new HashSet<String>();
+  private final Set<String> mAssigned = new HashSet<String>();
+  private final Map<String, Candidate> mCandidates =
+      new HashMap<String, Candidate>();
+  private final Set<String> mRejected = new HashSet<String>();
+  private final Map<VarExpr, Candidate> mLiftedVars =
+      new HashMap<VarExpr, Candidate>();
+  private final Map<CallExpr, Candidate> mLiftedCalls =
+      new HashMap<CallExpr, Candidate>();
+}
@@ -2,9 +2,8 @@ package com.stuffwithstuff.bulfinch;
 
 public class Lexer {
 
-  public Lexer(String text) {
+  public Lexer(CharSequence text) {
     mText = text;
-    mState = LexState.DEFAULT;
     mIndex = 0;
     mTokenStart = 0;
 
@@ -12,11 +11,42 @@ public class Lexer {
     mEatLines = true;
   }
 
+  /**
+   * Reads the next token. Tokens without text of their own, like
+   * punctuation and reserved words, are shared instead of created.
+   */
   public Token readToken() {
+    TokenType type = readTokenType();
+    if (!Token.hasText(type)) return Token.get(type);
+
+    return new Token(type,
+        mText.subSequence(mTokenStart, mTokenEnd).toString());
+  }
+
+  /**
+   * Reads all of the remaining tokens into a buffer. Unlike readToken(),
+   * this doesn't create an object or string for each token.
+   */
+  public TokenBuffer readAll() {
+    TokenBuffer tokens = new TokenBuffer(mText);
+
+    while (true) {
+      TokenType type = readTokenType();
+      tokens.add(type, mTokenStart, mTokenEnd - mTokenStart);
+      if (type == TokenType.EOF) return tokens;
+    }
+  }
+
+  /**
+   * Reads the next token and returns its type. Its text is the part of the
+   * source between getTokenStart() and getTokenEnd(). For strings, that's
+   * the text inside the quotes.
+   */
+  public TokenType readTokenType() {
     while (true) {
-      Token token = readRawToken();
+      TokenType type = readRawToken();
 
-      switch (token.getType()) {
+      switch (type) {
       // ignore lines after tokens that can't end an expression
       case LEFT_PAREN:
       case LEFT_BRACKET:
@@ -26,181 +56,217 @@ public class Lexer {
       case OPERATOR:
       case KEYWORD:
         mEatLines = true;
-        return token;
+        return type;
 
       case LINE:
         if (!mEatLines) {
           // collapse multiple lines
           mEatLines = true;
-          return token;
+          return type;
         }
         break;
 
       default:
         // a line after any other token is significant
         mEatLines = false;
-        return token;
+        return type;
       }
     }
   }
 
-  private Token readRawToken() {
-    while (mIndex <= mText.length()) {
-
-      // tack on a '\0' to the end of the string an lex it. that will let
-      // us conveniently have a place to end any token that goes to the
-      // end of the string
-      char c = (mIndex < mText.length()) ? mText.charAt(mIndex) : '\0';
-
-      switch (mState) {
-      case DEFAULT:
-        switch (c) {
-        case '(':
-          return singleCharToken(TokenType.LEFT_PAREN);
-        case ')':
-          return singleCharToken(TokenType.RIGHT_PAREN);
-        case '[':
-          return singleCharToken(TokenType.LEFT_BRACKET);
-        case ']':
-          return singleCharToken(TokenType.RIGHT_BRACKET);
-        case '{':
-          return singleCharToken(TokenType.LEFT_BRACE);
-        case '}':
-          return singleCharToken(TokenType.RIGHT_BRACE);
-        case ',':
-          return singleCharToken(TokenType.COMMA);
-        case ';':
-          return singleCharToken(TokenType.LINE);
-        case '.':
-          return singleCharToken(TokenType.DOT);
-        case '=':
-          return singleCharToken(TokenType.EQUALS);
-
-        case '"':
-          startToken(LexState.IN_STRING);
-          break;
-        case '#':
-          startToken(LexState.IN_COMMENT);
-          break;
-
-        case ':':
-          // start a multi-character token so that ":::" is a single
-          // keyword
-          startToken(LexState.IN_KEYWORD);
-          break;
-
-        case '\n':
-        case '\r':
-          return singleCharToken(TokenType.LINE);
-
-          // ignore whitespace
-        case ' ':
-        case '\t':
-        case '\0':
-          mIndex++;
-          break;
-
-        default:
-          if (isAlpha(c)) {
-            startToken(LexState.IN_NAME);
-          } else if (isOperator(c)) {
-            startToken(LexState.IN_OPERATOR);
-          } else {
-            // ### bob: hack temp. unexpected character
-            return new Token(TokenType.EOF);
-          }
-          break;
-        }
-        break;
+  /** Gets the source text that the tokens are read from. */
+  public CharSequence getText() {
+    return mText;
+  }
 
-      case IN_NAME:
-        if (isAlpha(c) || isDigit(c) || isOperator(c)) {
-          mIndex++;
-        } else if (c == ':') {
-          changeToken(LexState.IN_KEYWORD);
-        } else {
-          return createStringToken(TokenType.NAME);
-        }
-        break;
+  /** Gets the index of the first character of the last token read. */
+  public int getTokenStart() {
+    return mTokenStart;
+  }
 
-      case IN_OPERATOR:
-        if (isOperator(c) || isAlpha(c) || isDigit(c)) {
-          mIndex++;
-        } else {
-          return createStringToken(TokenType.OPERATOR);
-        }
+  /** Gets the index just past the last character of the last token read. */
+  public int getTokenEnd() {
+    return mTokenEnd;
+  }
+
+  private TokenType readRawToken() {
+    while (true) {
+      char c = peek();
+
+      switch (c) {
+      case '(':
+        return singleCharToken(TokenType.LEFT_PAREN);
+      case ')':
+        return singleCharToken(TokenType.RIGHT_PAREN);
+      case '[':
+        return singleCharToken(TokenType.LEFT_BRACKET);
+      case ']':
+        return singleCharToken(TokenType.RIGHT_BRACKET);
+      case '{':
+        return singleCharToken(TokenType.LEFT_BRACE);
+      case '}':
+        return singleCharToken(TokenType.RIGHT_BRACE);
+      case ',':
+        return singleCharToken(TokenType.COMMA);
+      case ';':
+        return singleCharToken(TokenType.LINE);
+      case '.':
+        return singleCharToken(TokenType.DOT);
+      case '=':
+        return singleCharToken(TokenType.EQUALS);
+
+      case '"':
+        return readString();
+      case '#':
+        skipComment();
         break;
 
-      case IN_KEYWORD:
-        if (isOperator(c) || isAlpha(c) || isDigit(c) || (c == ':')) {
-          mIndex++;
-        } else {
-          return createStringToken(TokenType.KEYWORD);
-        }
+      case ':':
+        // a multi-character token so that ":::" is a single keyword
+        return readName(TokenType.KEYWORD);
+
+      case '\n':
+      case '\r':
+        return singleCharToken(TokenType.LINE);
+
+        // ignore whitespace
+      case ' ':
+      case '\t':
+        mIndex++;
         break;
 
-      case IN_STRING:
-        if (c == '"') {
-          // eat the closing "
-          mIndex++;
-
-          // get the contained string without the quotes
-          String text = mText.substring(mTokenStart + 1, mIndex - 1);
-          mState = LexState.DEFAULT;
-          return new Token(TokenType.STRING, text);
-        } else if (c == '\0') {
-          // ### bob: need error handling. ran out of characters before
-          // string was closed
-          return new Token(TokenType.EOF);
-        } else {
-          mIndex++;
-        }
+      case '\0':
+        if (mIndex >= mText.length()) return emptyToken(TokenType.EOF);
+        mIndex++;
         break;
 
-      case IN_COMMENT:
-        if ((c == '\n') || (c == '\r')) {
-          // don't eat the newline here. that way, a comment on the
-          // same line as other code still allows the newline to be
-          // processed
-          mState = LexState.DEFAULT;
-        } else {
-          mIndex++;
+      default:
+        if (isAlpha(c)) {
+          return readName(TokenType.NAME);
+        } else if (isOperator(c)) {
+          return readName(TokenType.OPERATOR);
         }
-        break;
+
+        // ### bob: hack temp. unexpected character
+        return emptyToken(TokenType.EOF);
       }
     }
+  }
 
-    return new Token(TokenType.EOF);
+  /**
+   * Gets the current character. Past the end of the text, this is '\0'.
+   * That gives any token that goes to the end of the text a place to end.
+   */
+  private char peek() {
+    return (mIndex < mText.length()) ? mText.charAt(mIndex) : '\0';
   }
 
-  private Token singleCharToken(TokenType type) {
+  /**
+   * Reads a name, operator or keyword. A ':' turns a name into a keyword,
+   * and ends an operator.
+   */
+  private TokenType readName(TokenType type) {
+    mTokenStart = mIndex;
     mIndex++;
-    return new Token(type, mText.substring(mIndex - 1, mIndex));
+
+    while (true) {
+      char c = peek();
+      if (isAlpha(c) || isDigit(c) || isOperator(c)) {
+        mIndex++;
+      } else if ((c == ':') && (type != TokenType.OPERATOR)) {
+        type = TokenType.KEYWORD;
+        mIndex++;
+      } else {
+        return createStringToken(type);
+      }
+    }
   }
 
-  private void startToken(LexState state) {
+  private TokenType readString() {
+    // eat the opening "
+    mIndex++;
     mTokenStart = mIndex;
-    changeToken(state);
+
+    while (true) {
+      char c = peek();
+      if (c == '"') {
+        // the token is the contained string without the quotes
+        mTokenEnd = mIndex;
+
+        // eat the closing "
+        mIndex++;
+        return TokenType.STRING;
+      } else if (c == '\0') {
+        // ### bob: need error handling. ran out of characters before
+        // string was closed
+        return emptyToken(TokenType.EOF);
+      }
+
+      mIndex++;
+    }
+  }
+
+  private void skipComment() {
+    // don't eat the newline here. that way, a comment on the same line as
+    // other code still allows the newline to be processed
+    while (mIndex < mText.length()) {
+      char c = mText.charAt(mIndex);
+      if ((c == '\n') || (c == '\r')) return;
+      mIndex++;
+    }
   }
 
-  private void changeToken(LexState state) {
-    mState = state;
+  private TokenType singleCharToken(TokenType type) {
+    mTokenStart = mIndex;
     mIndex++;
+    mTokenEnd = mIndex;
+    return type;
+  }
+
+  private TokenType emptyToken(TokenType type) {
+    mTokenStart = mIndex;
+    mTokenEnd = mIndex;
+    return type;
+  }
+
+  private TokenType createStringToken(TokenType type) {
+    mTokenEnd = mIndex;
+
+    if (type == TokenType.NAME) return getReservedWord();
+    return type;
   }
 
-  private Token createStringToken(TokenType type) {
-    String text = mText.substring(mTokenStart, mIndex);
-    mState = LexState.DEFAULT;
-    
-    // Handle reserved words.
-    if (type == TokenType.NAME) {
-      if (text.equals("else")) type = TokenType.ELSE;
-      if (text.equals("fn")) type = TokenType.FN;
-      if (text.equals("if")) type = TokenType.IF;
-      if (text.equals("var")) type = TokenType.VAR;
+  /**
+   * Gets the type of the name token that was just read: a reserved word's
+   * type if it is one, or NAME otherwise.
+   */
+  private TokenType getReservedWord() {
+    switch (mText.charAt(mTokenStart)) {
+    case 'e':
+      if (isToken("else")) return TokenType.ELSE;
+      break;
+    case 'f':
+      if (isToken("fn")) return TokenType.FN;
+      break;
+    case 'i':
+      if (isToken("if")) return TokenType.IF;
+      break;
+    case 'v':
+      if (isToken("var")) return TokenType.VAR;
+      break;
     }
-    
-    return new Token(type, text);
+
+    return TokenType.NAME;
+  }
+
+  private boolean isToken(String text) {
+    if (mTokenEnd - mTokenStart != text.length()) return false;
+
+    for (int i = 0; i < text.length(); i++) {
+      if (mText.charAt(mTokenStart + i) != text.charAt(i)) return false;
+    }
+
+    return true;
   }
 
   private boolean isAlpha(final char c) {
@@ -213,16 +279,21 @@ public class Lexer {
   }
 
   private boolean isOperator(final char c) {
-    return "`~!@#$%^&*-=+\\|/?<>".indexOf(c) != -1;
+    return (c < OPERATORS.length) && OPERATORS[c];
   }
 
-  private enum LexState {
-    DEFAULT, IN_NAME, IN_OPERATOR, IN_KEYWORD, IN_STRING, IN_COMMENT
+  private static boolean[] createOperatorTable() {
+    boolean[] operators = new boolean[128];
+    for (char c : "`~!@#$%^&*-=+\\|/?<>".toCharArray()) operators[c] = true;
+    return operators;
   }
 
-  private final String mText;
-  private LexState mState;
+  // Which ASCII characters can be part of an operator.
+  private static final boolean[] OPERATORS = createOperatorTable();
+
+  private final CharSequence mText;
   private int mTokenStart;
+  private int mTokenEnd;
   private int mIndex;
   private boolean mEatLines;
 }
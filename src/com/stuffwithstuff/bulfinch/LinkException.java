@@ -0,0 +1,8 @@
+package com.stuffwithstuff.bulfinch;
+
+@SuppressWarnings("serial")
+public class LinkException extends RuntimeException {
+  public LinkException(final String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,89 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Links a set of compiled top-level functions into a Program. Each top-level
+ * name is given a slot in a global table, and every LOAD_GLOBAL (and
+ * CALL_GLOBAL) op is rewritten to refer to that slot instead of to a
+ * constant containing the name. That way, the VM doesn't have to look up
+ * names at runtime, and references to unknown globals are found before
+ * anything runs.
+ */
+public class Linker {
+  public static Program link(Map<String, Function> functions) {
+    // Sort the names so that slots don't depend on the map's order.
+    Map<String, Function> sorted = new TreeMap<String, Function>(functions);
+
+    String[] names = new String[sorted.size()];
+    Object[] globals = new Object[sorted.size()];
+    Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    int slot = 0;
+    for (String name : sorted.keySet()) {
+      names[slot] = name;
+      slots.put(name, slot);
+      slot++;
+    }
+
+    // Top-level functions don't capture anything, so each global is the
+    // function's shared closure, which exists once it's linked.
+    Linker linker = new Linker(names, slots);
+    slot = 0;
+    for (Function function : sorted.values()) {
+      linker.link(function);
+      globals[slot++] = function.getSharedClosure();
+    }
+
+    return new Program(names, globals, slots);
+  }
+
+  private Linker(String[] names, Map<String, Integer> slots) {
+    mNames = names;
+    mSlots = slots;
+  }
+
+  private void link(Function function) {
+    long[] code = function.getCode();
+    for (int i = 0; i < function.getCodeSize(); i++) {
+      switch (Op.opcode(code[i])) {
+      case Op.LOAD_GLOBAL:
+        function.patch(i, Op.LOAD_GLOBAL, findSlot(function, Op.a(code[i])),
+            Op.b(code[i]), -1);
+        break;
+
+      case Op.CALL_GLOBAL:
+        function.patch(i, Op.CALL_GLOBAL, Op.a(code[i]),
+            findSlot(function, Op.b(code[i])), Op.c(code[i]));
+        break;
+      }
+    }
+
+    function.link(mNames);
+
+    // Link nested functions too.
+    for (int i = 0; i < function.getNumConstants(); i++) {
+      Object constant = function.getConstant(i);
+      if (constant instanceof Function) {
+        link((Function)constant);
+      }
+    }
+  }
+
+  /** Finds the slot for the global whose name is in the given constant. */
+  private int findSlot(Function function, int constant) {
+    String name = function.getConstant(constant).toString();
+    Integer slot = mSlots.get(name);
+    if (slot == null) {
+      throw new LinkException("Unknown global '" + name + "' in " +
+          function.getDebugName() + ".");
+    }
+
+    return slot;
+  }
+
+  private final String[] mNames;
+  private final Map<String, Integer> mSlots;
+}
@@ -0,0 +1,216 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks a register for each local variable in a function, letting locals
+ * whose lifetimes don't overlap share one. Like the compiler, it gives all of
+ * the locals registers before any temporaries, so temporaries (and the
+ * function and arguments of a call) are still always at the top of the
+ * frame.
+ *
+ * Bulfinch has no loops and the compiler only ever jumps forward, so the
+ * ops for an expression are emitted in the same order that this walks the
+ * AST. That means a local's lifetime is usually the range from where its
+ * var starts being evaluated to the last place it is used. A var inside an
+ * if arm doesn't run when the other arm is taken, though, so a local that
+ * is used outside of the arm its var is in may be read before anything
+ * writes it. It has to read null, so it gets a register that no earlier
+ * local has used, as if its lifetime started when the function did.
+ *
+ * A local that a closure captures out of a register has to stay alive for
+ * the rest of the function, since the closure may use it at any time. With
+ * linked environments, captured locals are read from the environment, so
+ * only their writes use the register.
+ *
+ * Parameters always stay in the registers the caller passed them in.
+ */
+public class LocalAllocator implements ExprVisitor<Void> {
+  /**
+   * Gets the register for each of the function's locals.
+   */
+  public static int[] allocate(FunctionExpr function, boolean linked) {
+    LocalAllocator allocator = new LocalAllocator(function, linked);
+    function.getBody().accept(allocator, null);
+    return allocator.assignRegisters();
+  }
+
+  /**
+   * Gets the number of registers that the given allocation uses.
+   */
+  public static int getNumRegisters(int[] registers) {
+    int count = 0;
+    for (int register : registers) count = Math.max(count, register + 1);
+    return count;
+  }
+
+  /**
+   * Gets the names of the locals in each register. Locals that share a
+   * register are separated by "/".
+   */
+  public static List<String> getRegisterNames(List<String> locals,
+      int[] registers) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < getNumRegisters(registers); i++) names.add(null);
+
+    for (int local = 0; local < locals.size(); local++) {
+      String name = names.get(registers[local]);
+      if (name == null) {
+        name = locals.get(local);
+      } else {
+        name = name + "/" + locals.get(local);
+      }
+      names.set(registers[local], name);
+    }
+
+    return names;
+  }
+
+  @Override
+  public void visit(AssignExpr expr, Void dummy) {
+    expr.getValue().accept(this, dummy);
+
+    // The value is evaluated right into the local's register.
+    if (expr.getName().isLocal()) use(expr.getName().getLocalIndex());
+    mPosition++;
+  }
+
+  @Override
+  public void visit(CallExpr expr, Void dummy) {
+    expr.getFunction().accept(this, dummy);
+    for (Expr arg : expr.getArgs()) arg.accept(this, dummy);
+    mPosition++;
+  }
+
+  @Override
+  public void visit(FunctionExpr expr, Void dummy) {
+    if (!mLinked) {
+      for (UpvarRef upvar : expr.getUpvars()) {
+        if (upvar.isLocal()) {
+          use(upvar.getIndex());
+          mEnds[upvar.getIndex()] = Integer.MAX_VALUE;
+        }
+      }
+    }
+
+    mPosition++;
+  }
+
+  @Override
+  public void visit(IfExpr expr, Void dummy) {
+    expr.getCondition().accept(this, dummy);
+
+    // Only one of the arms runs, so track which one vars are declared in.
+    mOpenArms.add(mNumArms++);
+    expr.getThenArm().accept(this, dummy);
+    mOpenArms.remove(mOpenArms.size() - 1);
+
+    mOpenArms.add(mNumArms++);
+    expr.getElseArm().accept(this, dummy);
+    mOpenArms.remove(mOpenArms.size() - 1);
+
+    mPosition++;
+  }
+
+  @Override
+  public void visit(NameExpr expr, Void dummy) {
+    if (expr.getName().isLocal()) use(expr.getName().getLocalIndex());
+    mPosition++;
+  }
+
+  @Override
+  public void visit(SequenceExpr expr, Void dummy) {
+    for (Expr inner : expr.getExpressions()) inner.accept(this, dummy);
+  }
+
+  @Override
+  public void visit(StringExpr expr, Void dummy) {
+    mPosition++;
+  }
+
+  @Override
+  public void visit(VarExpr expr, Void dummy) {
+    // The register is in use as soon as the initializer starts writing to
+    // it.
+    int local = expr.getName().getLocalIndex();
+    mStarts[local] = mPosition++;
+    mVarArms[local] = mOpenArms.get(mOpenArms.size() - 1);
+
+    expr.getValue().accept(this, dummy);
+    use(local);
+    mPosition++;
+  }
+
+  private LocalAllocator(FunctionExpr function, boolean linked) {
+    mNumParameters = function.getParameters().size();
+    mLinked = linked;
+    mStarts = new int[function.getLocals().size()];
+    mEnds = new int[function.getLocals().size()];
+    mVarArms = new int[function.getLocals().size()];
+    mUsedOutsideArm = new boolean[function.getLocals().size()];
+
+    // The parameters are declared before anything in the body runs.
+    Arrays.fill(mVarArms, -1);
+    for (int i = 0; i < mNumParameters; i++) mVarArms[i] = 0;
+    mOpenArms.add(mNumArms++);
+  }
+
+  private void use(int local) {
+    mEnds[local] = Math.max(mEnds[local], mPosition);
+
+    // If the local's var hasn't run yet, or ran in an arm that we've since
+    // left, this may be reached without anything writing the local.
+    if ((mVarArms[local] == -1) || !mOpenArms.contains(mVarArms[local])) {
+      mUsedOutsideArm[local] = true;
+    }
+  }
+
+  /**
+   * Walks the locals in the order they become live and gives each one the
+   * lowest register that nothing live is using.
+   */
+  private int[] assignRegisters() {
+    int[] registers = new int[mStarts.length];
+
+    // The end of the lifetime of the local currently in each register.
+    int[] registerEnds = new int[mStarts.length];
+    Arrays.fill(registerEnds, -1);
+
+    for (int local = 0; local < mStarts.length; local++) {
+      int register = local;
+      if (local >= mNumParameters) {
+        register = 0;
+        int start = mStarts[local];
+        if (mUsedOutsideArm[local]) start = 0;
+        while (registerEnds[register] >= start) register++;
+      }
+
+      registers[local] = register;
+      registerEnds[register] = mEnds[local];
+    }
+
+    return registers;
+  }
+
+  private final int mNumParameters;
+  private final boolean mLinked;
+
+  // The positions in the function where each local's lifetime starts and
+  // ends.
+  private final int[] mStarts;
+  private final int[] mEnds;
+  private int mPosition = 1;
+
+  // The if arm that each local's var is in, or -1 if it hasn't been reached
+  // yet. The function's body counts as an arm.
+  private final int[] mVarArms;
+
+  // The arms that enclose the current position, innermost last.
+  private final List<Integer> mOpenArms = new ArrayList<Integer>();
+  private int mNumArms = 0;
+
+  // Whether each local is used somewhere its var may not have run.
+  private final boolean[] mUsedOutsideArm;
+}
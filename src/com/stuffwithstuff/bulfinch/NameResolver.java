@@ -1,11 +1,19 @@
 package com.stuffwithstuff.bulfinch;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Resolves all name references in a function. Modifies the AST to include
  * resolution information.
+ * 
+ * It also tracks which locals are ever assigned after being initialized. A
+ * captured local that never is can be copied into the closure by value. A
+ * local that is captured inside its own initializer (for example, so that a
+ * function can call itself) counts as assigned, since the closure is created
+ * before the variable has its value.
  */
 public class NameResolver implements ExprVisitor<Void> {
   public static void resolveTopLevel(FunctionExpr function) {
@@ -13,14 +21,26 @@ public class NameResolver implements ExprVisitor<Void> {
   }
   
   private void resolve(FunctionExpr function) {
+    mFunction = function;
     mLocals.addAll(function.getParameters());
     function.getBody().accept(this, null);
     function.resolve(mLocals, mUpvars);
+    
+    // Now that the whole function has been seen, we know which of the
+    // captured locals are ever assigned.
+    List<Integer> captured = new ArrayList<Integer>();
+    for (UpvarRef upvar : mCapturedLocals) {
+      upvar.setByValue(!mAssignedLocals.contains(upvar.getIndex()));
+      if (!captured.contains(upvar.getIndex())) {
+        captured.add(upvar.getIndex());
+      }
+    }
+    function.setCapturedLocals(captured);
   }
 
   @Override
   public void visit(AssignExpr expr, Void dummy) {
-    resolveName(this, expr.getName());
+    resolveName(this, expr.getName(), true);
     expr.getValue().accept(this, dummy);
   }
   
@@ -45,7 +65,7 @@ public class NameResolver implements ExprVisitor<Void> {
   
   @Override
   public void visit(NameExpr expr, Void dummy) {
-    resolveName(this, expr.getName());
+    resolveName(this, expr.getName(), false);
   }
 
   @Override
@@ -63,9 +83,12 @@ public class NameResolver implements ExprVisitor<Void> {
   @Override
   public void visit(VarExpr expr, Void dummy) {
     mLocals.add(expr.getName().getIdentifier());
-    expr.getName().resolveLocal(mLocals.size() - 1);
+    int local = mLocals.size() - 1;
+    expr.getName().resolveLocal(local);
     
+    mInitializing.add(local);
     expr.getValue().accept(this, dummy);
+    mInitializing.remove(local);
   }
 
   private NameResolver(NameResolver outerFunction) {
@@ -79,7 +102,8 @@ public class NameResolver implements ExprVisitor<Void> {
    * fill chain with all of the scopes from where it was defined to this one
    * (inclusive). If the name isn't found, chain will be left empty.
    */
-  private UpvarRef resolveName(NameResolver function, Name name) {
+  private UpvarRef resolveName(NameResolver function, Name name,
+      boolean isAssignment) {
     // Bail if we run out of scopes.
     if (function == null) {
       // If we got here, we couldn't find the name in any scope, so we'll
@@ -92,16 +116,28 @@ public class NameResolver implements ExprVisitor<Void> {
     // See if the name is defined here.
     int local = function.mLocals.indexOf(name.getIdentifier());
     if (local != -1) {
+      if (isAssignment) function.mAssignedLocals.add(local);
+
       if (function == this) {
         // It is defined in the current scope, resolve it as local.
         name.resolveLocal(local);
+        return new UpvarRef(name.getIdentifier(), true, local);
+      }
+      
+      // It's being captured by a closure.
+      if (function.mInitializing.contains(local)) {
+        function.mAssignedLocals.add(local);
       }
       
-      return new UpvarRef(name.getIdentifier(), true, local);
+      UpvarRef upvar = new UpvarRef(name.getIdentifier(), true, local);
+      upvar.setOwner(function.mFunction);
+      function.mCapturedLocals.add(upvar);
+      return upvar;
     }
     
     // Recurse upwards.
-    UpvarRef upvar = resolveName(function.mOuterFunction, name);
+    UpvarRef upvar = resolveName(function.mOuterFunction, name,
+        isAssignment);
     
     // Just unwind if we never found the name in any scope.
     if (upvar == null) return null;
@@ -120,7 +156,7 @@ public class NameResolver implements ExprVisitor<Void> {
     
     // Return the upvar index. We translate it into a negative number so we
     // can distinguish between locals and upvars.
-    return new UpvarRef(name.getIdentifier(), false, upvar.getSlot());
+    return new UpvarRef(name.getIdentifier(), upvar.getSlot(), upvar);
   }
   
   int findUpvar(List<UpvarRef> upvars, Name name) {
@@ -135,6 +171,10 @@ public class NameResolver implements ExprVisitor<Void> {
   }
   
   private final NameResolver mOuterFunction;
+  private FunctionExpr mFunction;
   private final List<String> mLocals;
   private final List<UpvarRef> mUpvars;
+  private final List<UpvarRef> mCapturedLocals = new ArrayList<UpvarRef>();
+  private final Set<Integer> mAssignedLocals = new HashSet<Integer>();
+  private final Set<Integer> mInitializing = new HashSet<Integer>();
 }
@@ -0,0 +1,52 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Estimates how much heap objects take up, in the style of a JOL layout
+ * report. It assumes a 64-bit HotSpot VM with compressed references: a
+ * 12-byte object header, a 16-byte array header, 4-byte references, and
+ * objects padded to a multiple of 8 bytes. The VM may pack fields a little
+ * differently, so treat the results as estimates.
+ */
+public class ObjectLayout {
+  /** Gets the size of an instance of the class, not what it refers to. */
+  public static long sizeOf(Class<?> type) {
+    long size = OBJECT_HEADER;
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers())) continue;
+        size += sizeOfField(field.getType());
+      }
+    }
+
+    return align(size);
+  }
+
+  /** Gets the size of an instance with the given number of reference fields. */
+  public static long sizeOf(int numReferences) {
+    return align(OBJECT_HEADER + numReferences * REFERENCE);
+  }
+
+  /** Gets the size of an array of references with the given length. */
+  public static long sizeOfArray(int length) {
+    return align(ARRAY_HEADER + length * REFERENCE);
+  }
+
+  private static long sizeOfField(Class<?> type) {
+    if (!type.isPrimitive()) return REFERENCE;
+    if ((type == long.class) || (type == double.class)) return 8;
+    if ((type == int.class) || (type == float.class)) return 4;
+    if ((type == short.class) || (type == char.class)) return 2;
+    return 1;
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7;
+  }
+
+  private static final long OBJECT_HEADER = 12;
+  private static final long ARRAY_HEADER = 16;
+  private static final long REFERENCE = 4;
+}
@@ -2,6 +2,15 @@ package com.stuffwithstuff.bulfinch;
 
 /**
  * A single bytecode instruction, including opcode and operands.
+ *
+ * At runtime, instructions aren't stored as Op objects. Instead, each one is
+ * packed into a single long with the opcode and each operand getting 16 bits:
+ *
+ * [C: 63-48] [B: 47-32] [A: 31-16] [opcode: 15-0]
+ *
+ * Unused operands (-1) are stored as all ones. The static methods here encode
+ * and decode that format. An Op instance is now just a debug view of a packed
+ * instruction, used for disassembly.
  */
 public class Op {
   public static final int CONSTANT = 0;
@@ -32,8 +41,10 @@ public class Op {
   // B = offset to jump by if A if falsey
 
   public static final int LOAD_GLOBAL = 6;
-  // Loads a named global into a register.
-  // A = index of constant containing name
+  // Loads a named global into a register. The compiler emits this with A
+  // referring to a constant containing the global's name. Linking rewrites A
+  // to be the global's slot instead.
+  // A = index of constant containing name, or global slot once linked
   // B = dest reg
 
   public static final int LOAD_UPVAR = 7;
@@ -60,6 +71,130 @@ public class Op {
   // created closure.
   // A = index of upvar in current function
   
+  public static final int ADD_VALUE_UPVAR = 12;
+  // Pseudo-opcode for adding an upvar that is never assigned to a recently
+  // created closure. Instead of sharing the variable, the closure gets a
+  // copy of its current value.
+  // A = register of variable in current function
+  
+  public static final int LOAD_VALUE_UPVAR = 13;
+  // Loads an upvar that was captured by value into a register.
+  // A = index of upvar to load
+  // B = dest reg
+  
+  public static final int LOAD_PARENT = 14;
+  // Loads a register from the frame of the function that called this one.
+  // Used by functions that never escape the function that defines them.
+  // A = register in calling frame
+  // B = dest reg
+  
+  public static final int STORE_PARENT = 15;
+  // Stores a register into the frame of the function that called this one.
+  // A = register in calling frame
+  // B = source reg
+  
+  // The next ops are used when compiling with linked environments. See
+  // EnvironmentModel.
+  
+  public static final int NEW_ENV = 16;
+  // Creates an environment record for the current call and makes it the
+  // current environment.
+  // A = number of slots
+  // B = 1 if the parent is the environment linked from the closure, 0 if
+  // there is no parent
+  
+  public static final int LOAD_ENV = 17;
+  // Loads a slot in an environment into a register.
+  // A = number of parent links to follow from the current environment
+  // B = slot
+  // C = dest reg
+  
+  public static final int STORE_ENV = 18;
+  // Stores a register into a slot in an environment.
+  // A = number of parent links to follow from the current environment
+  // B = slot
+  // C = source reg
+  
+  public static final int ADD_ENV = 19;
+  // Pseudo-opcode for linking the current environment to a recently created
+  // closure. It is the closure's only upvar.
+  
+  public static final int TAIL_CALL = 20;
+  // Calls a function whose result will be immediately returned. Instead of
+  // pushing a new frame, the callee reuses the current one. The function to
+  // call is in register A, and all B arguments are in successive registers
+  // after it.
+  // A = fn reg, B = num args
+  
+  // The remaining ops are superinstructions. Each does the work of a common
+  // pair of ops with a single dispatch. They are only created by
+  // Peephole.fuse().
+  
+  public static final int CALL_GLOBAL = 21;
+  // LOAD_GLOBAL followed by CALL. Calls the global in slot B. The arguments
+  // are in the registers after register C, which is where the function would
+  // have been loaded. After calling, the result will be in register A.
+  // A = result reg, B = index of constant containing name, or global slot
+  // once linked, C = fn reg
+  
+  public static final int RETURN_CALL = 22;
+  // CALL followed by RETURN of its result. Calls the function like CALL.
+  // When the callee returns, this function returns the same value right
+  // away.
+  // A = result reg, B = fn reg, C = num args
+  
+  public static final int CONSTANT_RETURN = 23;
+  // CONSTANT followed by RETURN. Returns a constant.
+  // A = constant
+  
+  /** The largest value that fits in an operand. */
+  public static final int MAX_OPERAND = 0xfffe;
+  
+  public static long encode(int opcode, int a, int b, int c) {
+    return (long)field(opcode) |
+        ((long)field(a) << 16) |
+        ((long)field(b) << 32) |
+        ((long)field(c) << 48);
+  }
+  
+  public static int opcode(long op) {
+    return (int)op & 0xffff;
+  }
+
+  public static int a(long op) {
+    return (int)(op >>> 16) & 0xffff;
+  }
+
+  public static int b(long op) {
+    return (int)(op >>> 32) & 0xffff;
+  }
+
+  public static int c(long op) {
+    return (int)(op >>> 48);
+  }
+  
+  /** Unpacks an encoded instruction into an Op. */
+  public static Op decode(long op) {
+    return new Op(unfield(opcode(op)), unfield(a(op)), unfield(b(op)),
+        unfield(c(op)));
+  }
+  
+  private static int field(int value) {
+    if (value == -1) return 0xffff;
+    
+    if ((value < 0) || (value > MAX_OPERAND)) {
+      throw new IllegalArgumentException(
+          "Operand " + value + " is out of range.");
+    }
+    
+    return value;
+  }
+  
+  private static int unfield(int value) {
+    if (value == 0xffff) return -1;
+    return value;
+  }
+  
   public final int opcode;
   public final int a;
   public final int b;
@@ -83,4 +218,53 @@ public class Op {
   public Op(int opcode) {
     this(opcode, -1);
   }
+  
+  public static String name(int opcode) {
+    switch (opcode) {
+    case CONSTANT: return "CONSTANT";
+    case MOVE: return "MOVE";
+    case CALL: return "CALL";
+    case RETURN: return "RETURN";
+    case JUMP: return "JUMP";
+    case JUMP_IF_FALSE: return "JUMP_IF_FALSE";
+    case LOAD_GLOBAL: return "LOAD_GLOBAL";
+    case LOAD_UPVAR: return "LOAD_UPVAR";
+    case STORE_UPVAR: return "STORE_UPVAR";
+    case CLOSURE: return "CLOSURE";
+    case ADD_UPVAR: return "ADD_UPVAR";
+    case ADD_OUTER_UPVAR: return "ADD_OUTER_UPVAR";
+    case ADD_VALUE_UPVAR: return "ADD_VALUE_UPVAR";
+    case LOAD_VALUE_UPVAR: return "LOAD_VALUE_UPVAR";
+    case LOAD_PARENT: return "LOAD_PARENT";
+    case STORE_PARENT: return "STORE_PARENT";
+    case NEW_ENV: return "NEW_ENV";
+    case LOAD_ENV: return "LOAD_ENV";
+    case STORE_ENV: return "STORE_ENV";
+    case ADD_ENV: return "ADD_ENV";
+    case TAIL_CALL: return "TAIL_CALL";
+    case CALL_GLOBAL: return "CALL_GLOBAL";
+    case RETURN_CALL: return "RETURN_CALL";
+    case CONSTANT_RETURN: return "CONSTANT_RETURN";
+    default: return "???";
+    }
+  }
+  
+  /** Packs this op into its runtime encoding. */
+  public long encode() {
+    return encode(opcode, a, b, c);
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(name(opcode)).append("(");
+    
+    // Unused operands are -1 and only ever trail the used ones.
+    if (a != -1) builder.append(a);
+    if (b != -1) builder.append(", ").append(b);
+    if (c != -1) builder.append(", ").append(c);
+    
+    builder.append(")");
+    return builder.toString();
+  }
 }
@@ -0,0 +1,79 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An ExecutionListener that counts how often each pair of adjacent ops in a
+ * function is executed. Each executed op is counted along with the op before
+ * it in the same function, unless that op can't fall through to it. The
+ * most frequent pairs are the best candidates for new superinstructions.
+ *
+ * Since it can't tell whether an op was reached by falling through or by a
+ * jump, the counts for ops that are jump targets are approximate.
+ */
+public class OpPairCounter implements ExecutionListener {
+  @Override
+  public void executed(VM vm, Function function, int ip, Op op) {
+    // Skip over any upvar pseudo-ops to find the real op before this one.
+    int previous = ip - 1;
+    while ((previous >= 0) && isPseudoOp(function, previous)) previous--;
+    if (previous < 0) return;
+
+    int first = Op.opcode(function.getCode()[previous]);
+    switch (first) {
+    case Op.JUMP:
+    case Op.RETURN:
+    case Op.TAIL_CALL:
+    case Op.RETURN_CALL:
+    case Op.CONSTANT_RETURN:
+      // Can't fall through to this op.
+      return;
+    }
+
+    mCounts[first][op.opcode]++;
+  }
+
+  public long getCount(int first, int second) {
+    return mCounts[first][second];
+  }
+
+  /** Prints the given number of most frequently executed pairs. */
+  public void report(PrintStream out, int limit) {
+    List<int[]> pairs = new ArrayList<int[]>();
+    for (int first = 0; first < NUM_OPCODES; first++) {
+      for (int second = 0; second < NUM_OPCODES; second++) {
+        if (mCounts[first][second] > 0) {
+          pairs.add(new int[] { first, second });
+        }
+      }
+    }
+
+    Collections.sort(pairs, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return Long.compare(mCounts[b[0]][b[1]], mCounts[a[0]][a[1]]);
+      }
+    });
+
+    for (int i = 0; i < Math.min(limit, pairs.size()); i++) {
+      int[] pair = pairs.get(i);
+      out.println(String.format("  %-16s %-16s %10d", Op.name(pair[0]),
+          Op.name(pair[1]), mCounts[pair[0]][pair[1]]));
+    }
+  }
+
+  private boolean isPseudoOp(Function function, int ip) {
+    int opcode = Op.opcode(function.getCode()[ip]);
+    return (opcode == Op.ADD_UPVAR) || (opcode == Op.ADD_VALUE_UPVAR) ||
+        (opcode == Op.ADD_OUTER_UPVAR) || (opcode == Op.ADD_ENV);
+  }
+
+  // Big enough for every opcode.
+  private static final int NUM_OPCODES = 64;
+
+  private final long[][] mCounts = new long[NUM_OPCODES][NUM_OPCODES];
+}
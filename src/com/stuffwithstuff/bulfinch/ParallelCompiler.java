@@ -0,0 +1,100 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resolves and compiles the top-level functions of a program in parallel on
+ * a ForkJoinPool. Each top-level function, along with the functions nested
+ * in it, is compiled on its own, the same as it would be one at a time:
+ * nothing but the CompilerOptions and its ConstantTable is shared between
+ * them, and the table is safe to use from several threads. So the compiled
+ * functions don't depend on which thread compiled what or when.
+ *
+ * A nested function is compiled in the same task as the top-level function
+ * that contains it, since it needs to see how its parent compiled the
+ * variables it uses.
+ */
+public class ParallelCompiler {
+  /**
+   * Compiles every function in the program.
+   * @return The compiled functions, by name.
+   */
+  public static Map<String, Function> compile(
+      Map<String, FunctionExpr> program, CompilerOptions options,
+      ForkJoinPool pool) {
+    // Sort the functions so that the way the work is split up doesn't
+    // depend on the map's order.
+    Map<String, FunctionExpr> sorted =
+        new TreeMap<String, FunctionExpr>(program);
+    List<String> names = new ArrayList<String>(sorted.keySet());
+    List<FunctionExpr> functions =
+        new ArrayList<FunctionExpr>(sorted.values());
+
+    Function[] compiled = new Function[functions.size()];
+    pool.invoke(new CompileTask(names, functions, options, compiled, 0,
+        functions.size()));
+
+    Map<String, Function> compiledByName = new HashMap<String, Function>();
+    for (int i = 0; i < compiled.length; i++) {
+      compiledByName.put(names.get(i), compiled[i]);
+    }
+
+    return compiledByName;
+  }
+
+  /**
+   * Compiles a range of the functions, splitting it in half until it's
+   * small enough. Each compiled function goes in its own slot, so no two
+   * tasks write to the same place.
+   */
+  private static class CompileTask extends RecursiveAction {
+    CompileTask(List<String> names, List<FunctionExpr> functions,
+        CompilerOptions options, Function[] compiled, int start, int end) {
+      mNames = names;
+      mFunctions = functions;
+      mOptions = options;
+      mCompiled = compiled;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart <= FUNCTIONS_PER_TASK) {
+        for (int i = mStart; i < mEnd; i++) {
+          mCompiled[i] = Compiler.compileTopLevel(mFunctions.get(i),
+              mNames.get(i), mOptions);
+        }
+        return;
+      }
+
+      int middle = (mStart + mEnd) / 2;
+      invokeAll(
+          new CompileTask(mNames, mFunctions, mOptions, mCompiled, mStart,
+              middle),
+          new CompileTask(mNames, mFunctions, mOptions, mCompiled, middle,
+              mEnd));
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> mNames;
+    private final List<FunctionExpr> mFunctions;
+    private final CompilerOptions mOptions;
+    private final Function[] mCompiled;
+    private final int mStart;
+    private final int mEnd;
+  }
+
+  /**
+   * The most functions a task compiles without splitting. Compiling a
+   * function is quick, so a task needs a few to be worth forking.
+   */
+  private static final int FUNCTIONS_PER_TASK = 16;
+}
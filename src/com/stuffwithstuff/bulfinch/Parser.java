@@ -1,65 +1,111 @@
 package com.stuffwithstuff.bulfinch;
 
-import java.util.*;
-
+/**
+ * Base class for a recursive descent parser. Tokens that have been looked
+ * at but not consumed yet are kept in a small ring buffer. Only each token's
+ * type and where its text is are stored, so reading and matching tokens
+ * doesn't allocate anything. A token's text is only created when the
+ * parser asks for it with getMatchText().
+ */
 public abstract class Parser {
   public Parser(Lexer lexer) {
     mLexer = lexer;
-
-    mRead = new LinkedList<Token>();
   }
 
-  protected Token[] getMatch() {
-    return mLastMatch;
+  /**
+   * Gets the text of one of the tokens that the last match() or consume()
+   * consumed.
+   */
+  protected String getMatchText(int index) {
+    Expect.arg(index < mNumMatched, "Index must be within the last match.");
+
+    return mLexer.getText().subSequence(mMatchStarts[index],
+        mMatchEnds[index]).toString();
   }
 
-  protected boolean isMatch(TokenType... types) {
-    for (int i = 0; i < types.length; i++) {
-      if (!lookAhead(i).getType().equals(types[i]))
-        return false;
-    }
+  protected boolean isMatch(TokenType type) {
+    return lookAhead(0) == type;
+  }
 
-    return true;
+  protected boolean isMatch(TokenType first, TokenType second) {
+    return (lookAhead(0) == first) && (lookAhead(1) == second);
   }
 
-  protected Token consume(TokenType type) {
-    return consume(type, "Expect '" + type + "'.'");
+  protected void consume(TokenType type) {
+    if (!match(type)) {
+      throw new ParseException("Expect '" + type + "'.'");
+    }
   }
-  
-  protected Token consume(TokenType type, String error) {
+
+  protected void consume(TokenType type, String error) {
     if (!match(type)) {
       throw new ParseException(error);
     }
-    
-    return mLastMatch[0];
   }
-  
-  protected boolean match(TokenType... types) {
-    // don't consume any unless all match
-    if (!isMatch(types))
-      return false;
 
-    mLastMatch = new Token[types.length];
+  protected boolean match(TokenType type) {
+    if (!isMatch(type)) return false;
 
-    for (int i = 0; i < mLastMatch.length; i++) {
-      mLastMatch[i] = mRead.poll();
-    }
+    mNumMatched = 0;
+    advance();
+    return true;
+  }
+
+  protected boolean match(TokenType first, TokenType second) {
+    // don't consume any unless all match
+    if (!isMatch(first, second)) return false;
 
+    mNumMatched = 0;
+    advance();
+    advance();
     return true;
   }
 
-  private Token lookAhead(int distance) {
+  private TokenType lookAhead(int distance) {
     // read in as many as needed
-    while (distance >= mRead.size()) {
-      mRead.add(mLexer.readToken());
+    while (distance >= mNumRead) {
+      int slot = (mFirst + mNumRead) & (LOOKAHEAD - 1);
+      mTypes[slot] = mLexer.readTokenType();
+      mStarts[slot] = mLexer.getTokenStart();
+      mEnds[slot] = mLexer.getTokenEnd();
+      mNumRead++;
     }
 
-    // get the queued token
-    return mRead.get(distance);
+    return mTypes[(mFirst + distance) & (LOOKAHEAD - 1)];
   }
 
+  /**
+   * Consumes the first token in the buffer and remembers where its text is
+   * as the next token of the current match.
+   */
+  private void advance() {
+    mMatchStarts[mNumMatched] = mStarts[mFirst];
+    mMatchEnds[mNumMatched] = mEnds[mFirst];
+    mNumMatched++;
+
+    mFirst = (mFirst + 1) & (LOOKAHEAD - 1);
+    mNumRead--;
+  }
+
+  /**
+   * The size of the lookahead buffer. The most a parser can look ahead is
+   * the most tokens that a single match() takes. This must be a power of
+   * two.
+   */
+  private static final int LOOKAHEAD = 2;
+
   private final Lexer mLexer;
 
-  private final LinkedList<Token> mRead;
-  private Token[] mLastMatch;
+  // The tokens that have been read but not consumed yet, starting at
+  // mFirst.
+  private final TokenType[] mTypes = new TokenType[LOOKAHEAD];
+  private final int[] mStarts = new int[LOOKAHEAD];
+  private final int[] mEnds = new int[LOOKAHEAD];
+  private int mFirst = 0;
+  private int mNumRead = 0;
+
+  // Where the text of each token in the last match is.
+  private final int[] mMatchStarts = new int[LOOKAHEAD];
+  private final int[] mMatchEnds = new int[LOOKAHEAD];
+  private int mNumMatched = 0;
 }
@@ -0,0 +1,517 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.BitSet;
+
+/**
+ * Cleans up the bytecode for a compiled function. The compiler is simple and
+ * emits a lot of redundant code, like evaluating into a local's register and
+ * then moving it somewhere else, or jumping to a jump. This pass:
+ *
+ * - Threads jumps that land on other jumps or on a RETURN.
+ * - Removes code that can't be reached, like the code after a RETURN or
+ *   JUMP.
+ * - Folds an op that writes a register into a following MOVE out of that
+ *   register, if nothing else reads it.
+ * - Removes moves and loads into registers that are never read.
+ *
+ * It repeats those until the code stops changing. Since Bulfinch has no
+ * backwards jumps, a single backwards walk over the code is enough to find
+ * which registers are live at each op. Registers that are captured by a
+ * closure can be read and written by other functions, so those are always
+ * considered live.
+ */
+public class Peephole {
+  public static void optimize(Function function) {
+    Peephole peephole = new Peephole(function);
+    peephole.decode();
+    peephole.optimize();
+    peephole.encode();
+  }
+
+  /**
+   * Replaces common pairs of ops with a single superinstruction:
+   *
+   * - A LOAD_GLOBAL of the function that a CALL calls becomes CALL_GLOBAL.
+   * - A CALL followed by a RETURN of its result becomes RETURN_CALL.
+   * - A CONSTANT followed by a RETURN of it becomes CONSTANT_RETURN.
+   *
+   * This should run after optimize(), since the other optimizations don't
+   * know about superinstructions.
+   */
+  public static void fuse(Function function) {
+    Peephole peephole = new Peephole(function);
+    peephole.decode();
+    peephole.fuse();
+    peephole.encode();
+  }
+
+  private Peephole(Function function) {
+    mFunction = function;
+  }
+
+  private void optimize() {
+    boolean changed;
+    do {
+      changed = false;
+      changed |= threadJumps();
+      changed |= removeUnreachable();
+      changed |= coalesceMoves();
+      changed |= removeDeadStores();
+    } while (changed);
+  }
+
+  private void fuse() {
+    computeLiveness();
+
+    boolean[] targeted = findJumpTargets();
+
+    for (int i = 0; i < mSize; i++) {
+      // Most pairs fuse with the op after this one. That op can't be the
+      // target of a jump since then it would have to exist on its own.
+      boolean canFuseNext = (i < mSize - 1) && !targeted[i + 1];
+
+      switch (mOpcodes[i]) {
+      case Op.CALL: {
+        int load = findGlobalLoad(i, targeted);
+        if (load != -1) {
+          set(i, Op.CALL_GLOBAL, mA[i], mA[load], mB[i]);
+          mRemoved[load] = true;
+        } else if (canFuseNext && (mOpcodes[i + 1] == Op.RETURN) &&
+            (mA[i + 1] == mA[i])) {
+          set(i, Op.RETURN_CALL, mA[i], mB[i], mC[i]);
+          mRemoved[i + 1] = true;
+        }
+        break;
+      }
+
+      case Op.CONSTANT:
+        // If the register is captured, a closure could see the constant
+        // stored in it, so it has to really be stored.
+        if (canFuseNext && (mOpcodes[i + 1] == Op.RETURN) &&
+            (mA[i + 1] == mB[i]) && !mCaptured.get(mB[i])) {
+          set(i, Op.CONSTANT_RETURN, mA[i], -1, -1);
+          mRemoved[i + 1] = true;
+        }
+        break;
+      }
+    }
+
+    compact();
+  }
+
+  /**
+   * Finds the LOAD_GLOBAL that loads the function called by the CALL at the
+   * given index. Returns -1 if there isn't one, or if the load can't safely
+   * be fused into the call.
+   */
+  private int findGlobalLoad(int call, boolean[] targeted) {
+    int fn = mB[call];
+
+    // The register doesn't get the function in it once the load is gone.
+    if (mCaptured.get(fn) || mLiveOut[call].get(fn)) return -1;
+
+    for (int i = call - 1; i >= 0; i--) {
+      // Don't bother fusing across control flow, like an if expression in
+      // one of the arguments.
+      if (targeted[i + 1] || isJump(i) || !fallsThrough(i)) return -1;
+
+      if (writes(i, fn)) {
+        if (mOpcodes[i] == Op.LOAD_GLOBAL) return i;
+        return -1;
+      }
+
+      if (reads(i, fn)) return -1;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Changes jumps that land on a JUMP to go straight to its target. A JUMP
+   * that lands on a RETURN just becomes the RETURN. Jumps to the very next
+   * op are removed.
+   */
+  private boolean threadJumps() {
+    boolean changed = false;
+
+    for (int i = 0; i < mSize; i++) {
+      if (!isJump(i)) continue;
+
+      // Since jumps only go forward, this can't loop forever.
+      int target = mTargets[i];
+      while (mOpcodes[target] == Op.JUMP) {
+        target = mTargets[target];
+      }
+
+      if (target != mTargets[i]) {
+        mTargets[i] = target;
+        changed = true;
+      }
+
+      if (target == i + 1) {
+        // JUMP_IF_FALSE has no side effects, so it can be removed too.
+        mRemoved[i] = true;
+        changed = true;
+      } else if ((mOpcodes[i] == Op.JUMP) && (mOpcodes[target] == Op.RETURN)) {
+        set(i, Op.RETURN, mA[target], -1, -1);
+        changed = true;
+      }
+    }
+
+    return compact() || changed;
+  }
+
+  private boolean removeUnreachable() {
+    boolean[] reachable = new boolean[mSize];
+    reachable[0] = true;
+
+    // Since jumps only go forward, a single forward pass finds everything.
+    for (int i = 0; i < mSize; i++) {
+      if (!reachable[i]) {
+        mRemoved[i] = true;
+        continue;
+      }
+
+      if (fallsThrough(i) && (i + 1 < mSize)) reachable[i + 1] = true;
+      if (isJump(i)) reachable[mTargets[i]] = true;
+    }
+
+    return compact();
+  }
+
+  /**
+   * Looks for a MOVE out of a register that is never read again. If the op
+   * right before it wrote that register, it can write straight to the MOVE's
+   * destination instead. If the op right after it reads it, it can read the
+   * MOVE's source instead.
+   */
+  private boolean coalesceMoves() {
+    computeLiveness();
+
+    boolean[] targeted = findJumpTargets();
+
+    for (int i = 0; i < mSize; i++) {
+      if (mRemoved[i] || (mOpcodes[i] != Op.MOVE)) continue;
+
+      int from = mA[i];
+      int to = mB[i];
+
+      // Fold into the previous op's destination.
+      if ((i > 0) && !targeted[i] && !mRemoved[i - 1] &&
+          (getDest(i - 1) == from) && !mCaptured.get(from) &&
+          !mLiveOut[i].get(from)) {
+        setDest(i - 1, to);
+        mRemoved[i] = true;
+        continue;
+      }
+
+      // Fold into the next op's source.
+      if ((i < mSize - 1) && !targeted[i + 1] && !mCaptured.get(to) &&
+          (getSource(i + 1) == to) && !mLiveOut[i + 1].get(to)) {
+        setSource(i + 1, from);
+        mRemoved[i] = true;
+      }
+    }
+
+    return compact();
+  }
+
+  /** Removes moves and loads into registers that aren't read afterwards. */
+  private boolean removeDeadStores() {
+    computeLiveness();
+
+    for (int i = 0; i < mSize; i++) {
+      // A move into its own register does nothing.
+      if ((mOpcodes[i] == Op.MOVE) && (mA[i] == mB[i])) {
+        mRemoved[i] = true;
+        continue;
+      }
+
+      switch (mOpcodes[i]) {
+      case Op.MOVE:
+      case Op.CONSTANT:
+      case Op.LOAD_GLOBAL:
+      case Op.LOAD_UPVAR:
+      case Op.LOAD_VALUE_UPVAR:
+      case Op.LOAD_PARENT:
+        if (!mCaptured.get(mB[i]) && !mLiveOut[i].get(mB[i])) {
+          mRemoved[i] = true;
+        }
+        break;
+
+      case Op.LOAD_ENV:
+        if (!mCaptured.get(mC[i]) && !mLiveOut[i].get(mC[i])) {
+          mRemoved[i] = true;
+        }
+        break;
+      }
+    }
+
+    return compact();
+  }
+
+  private void computeLiveness() {
+    // Any register captured by a closure may be accessed through an upvar
+    // at any time, so treat it as always live.
+    mCaptured = new BitSet();
+    for (int i = 0; i < mSize; i++) {
+      if (mOpcodes[i] == Op.ADD_UPVAR) mCaptured.set(mA[i]);
+    }
+    mCaptured.or(mFunction.getCapturedRegisters());
+
+    BitSet[] liveIn = new BitSet[mSize];
+    mLiveOut = new BitSet[mSize];
+
+    for (int i = mSize - 1; i >= 0; i--) {
+      BitSet live = new BitSet();
+      if (fallsThrough(i) && (i + 1 < mSize)) live.or(liveIn[i + 1]);
+      if (isJump(i)) live.or(liveIn[mTargets[i]]);
+      mLiveOut[i] = (BitSet)live.clone();
+
+      int dest = getDest(i);
+      if (dest != -1) live.clear(dest);
+
+      addReads(i, live);
+      live.or(mCaptured);
+      liveIn[i] = live;
+    }
+  }
+
+  /** Adds the registers that the given op reads to the set. */
+  private void addReads(int index, BitSet registers) {
+    switch (mOpcodes[index]) {
+    case Op.MOVE:
+    case Op.RETURN:
+    case Op.JUMP_IF_FALSE:
+    case Op.ADD_VALUE_UPVAR:
+      registers.set(mA[index]);
+      break;
+
+    case Op.STORE_UPVAR:
+    case Op.STORE_PARENT:
+      registers.set(mB[index]);
+      break;
+
+    case Op.STORE_ENV:
+      registers.set(mC[index]);
+      break;
+
+    case Op.CALL:
+    case Op.RETURN_CALL:
+      registers.set(mB[index], mB[index] + mC[index] + 1);
+      break;
+
+    case Op.TAIL_CALL:
+      registers.set(mA[index], mA[index] + mB[index] + 1);
+      break;
+
+    case Op.CALL_GLOBAL:
+      // The number of arguments isn't known, so assume it reads everything
+      // past where the function would be.
+      registers.set(mC[index] + 1, mFunction.getNumRegisters());
+      break;
+    }
+  }
+
+  private boolean reads(int index, int register) {
+    BitSet registers = new BitSet();
+    addReads(index, registers);
+    return registers.get(register);
+  }
+
+  private boolean writes(int index, int register) {
+    if (getDest(index) == register) return true;
+
+    // CLOSURE isn't considered by the other optimizations, so getDest()
+    // doesn't include it.
+    return (mOpcodes[index] == Op.CLOSURE) && (mB[index] == register);
+  }
+
+  private boolean[] findJumpTargets() {
+    boolean[] targeted = new boolean[mSize];
+    for (int i = 0; i < mSize; i++) {
+      if (isJump(i)) targeted[mTargets[i]] = true;
+    }
+
+    return targeted;
+  }
+
+  /** Gets the register written by the given op, or -1 if it has none. */
+  private int getDest(int index) {
+    switch (mOpcodes[index]) {
+    case Op.CONSTANT:
+    case Op.MOVE:
+    case Op.LOAD_GLOBAL:
+    case Op.LOAD_UPVAR:
+    case Op.LOAD_VALUE_UPVAR:
+    case Op.LOAD_PARENT:
+      return mB[index];
+
+    case Op.CALL:
+    case Op.CALL_GLOBAL:
+    case Op.RETURN_CALL:
+      return mA[index];
+
+    case Op.LOAD_ENV:
+      return mC[index];
+
+    default:
+      return -1;
+    }
+  }
+
+  private void setDest(int index, int register) {
+    if (mOpcodes[index] == Op.CALL) {
+      mA[index] = register;
+    } else if (mOpcodes[index] == Op.LOAD_ENV) {
+      mC[index] = register;
+    } else {
+      mB[index] = register;
+    }
+  }
+
+  /**
+   * Gets the register read by the given op if it reads exactly one register
+   * that could come from anywhere, or -1 if it doesn't. Calls are excluded
+   * because their arguments have to be in a certain place.
+   */
+  private int getSource(int index) {
+    switch (mOpcodes[index]) {
+    case Op.MOVE:
+    case Op.RETURN:
+    case Op.JUMP_IF_FALSE:
+      return mA[index];
+
+    case Op.STORE_UPVAR:
+    case Op.STORE_PARENT:
+      return mB[index];
+
+    case Op.STORE_ENV:
+      return mC[index];
+
+    default:
+      return -1;
+    }
+  }
+
+  private void setSource(int index, int register) {
+    if ((mOpcodes[index] == Op.STORE_UPVAR) ||
+        (mOpcodes[index] == Op.STORE_PARENT)) {
+      mB[index] = register;
+    } else if (mOpcodes[index] == Op.STORE_ENV) {
+      mC[index] = register;
+    } else {
+      mA[index] = register;
+    }
+  }
+
+  private boolean isJump(int index) {
+    return (mOpcodes[index] == Op.JUMP) ||
+        (mOpcodes[index] == Op.JUMP_IF_FALSE);
+  }
+
+  private boolean fallsThrough(int index) {
+    switch (mOpcodes[index]) {
+    case Op.JUMP:
+    case Op.RETURN:
+    case Op.TAIL_CALL:
+    case Op.RETURN_CALL:
+    case Op.CONSTANT_RETURN:
+      return false;
+
+    default:
+      return true;
+    }
+  }
+
+  private void set(int index, int opcode, int a, int b, int c) {
+    mOpcodes[index] = opcode;
+    mA[index] = a;
+    mB[index] = b;
+    mC[index] = c;
+  }
+
+  /**
+   * Unpacks the function's code into separate arrays that are easier to
+   * edit. Jump offsets are turned into absolute targets.
+   */
+  private void decode() {
+    mSize = mFunction.getCodeSize();
+    mOpcodes = new int[mSize];
+    mA = new int[mSize];
+    mB = new int[mSize];
+    mC = new int[mSize];
+    mTargets = new int[mSize];
+    mRemoved = new boolean[mSize];
+
+    for (int i = 0; i < mSize; i++) {
+      Op op = mFunction.getOp(i);
+      set(i, op.opcode, op.a, op.b, op.c);
+
+      // + 1 because the IP has already been advanced past the jump.
+      if (op.opcode == Op.JUMP) mTargets[i] = i + 1 + op.a;
+      if (op.opcode == Op.JUMP_IF_FALSE) mTargets[i] = i + 1 + op.b;
+    }
+  }
+
+  /**
+   * Deletes the ops that have been marked as removed and fixes up jump
+   * targets to account for that.
+   * @return true if anything was removed.
+   */
+  private boolean compact() {
+    // Figure out where each op will end up. A removed op maps to wherever
+    // the next remaining op ends up, so jumps to it go there.
+    int[] newIndex = new int[mSize + 1];
+    int size = 0;
+    for (int i = 0; i < mSize; i++) {
+      newIndex[i] = size;
+      if (!mRemoved[i]) size++;
+    }
+    newIndex[mSize] = size;
+
+    if (size == mSize) return false;
+
+    for (int i = 0; i < mSize; i++) {
+      if (mRemoved[i]) continue;
+
+      int to = newIndex[i];
+      set(to, mOpcodes[i], mA[i], mB[i], mC[i]);
+      mTargets[to] = newIndex[mTargets[i]];
+    }
+
+    mSize = size;
+    mRemoved = new boolean[mSize];
+    return true;
+  }
+
+  private void encode() {
+    long[] code = new long[mSize];
+    for (int i = 0; i < mSize; i++) {
+      // - 1 because the IP has already been advanced past the jump.
+      if (mOpcodes[i] == Op.JUMP) mA[i] = mTargets[i] - i - 1;
+      if (mOpcodes[i] == Op.JUMP_IF_FALSE) mB[i] = mTargets[i] - i - 1;
+
+      code[i] = Op.encode(mOpcodes[i], mA[i], mB[i], mC[i]);
+    }
+
+    mFunction.setCode(code, mSize);
+  }
+
+  private final Function mFunction;
+
+  private int mSize;
+  private int[] mOpcodes;
+  private int[] mA;
+  private int[] mB;
+  private int[] mC;
+
+  // For jump ops, the absolute index of the op they jump to.
+  private int[] mTargets;
+
+  // Ops that have been marked for deletion the next time compact() runs.
+  private boolean[] mRemoved;
+
+  private BitSet mCaptured;
+  private BitSet[] mLiveOut;
+}
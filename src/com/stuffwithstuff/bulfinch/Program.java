@@ -0,0 +1,44 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.Map;
+
+/**
+ * A compiled and linked program. Every top-level name has a slot in the
+ * global table, and LOAD_GLOBAL ops in the program's functions refer to
+ * those slots directly.
+ */
+public class Program {
+  Program(String[] names, Object[] globals, Map<String, Integer> slots) {
+    mNames = names;
+    mGlobals = globals;
+    mSlots = slots;
+  }
+
+  public int getNumGlobals() {
+    return mGlobals.length;
+  }
+
+  public String getGlobalName(int slot) {
+    return mNames[slot];
+  }
+
+  public Object getGlobal(int slot) {
+    return mGlobals[slot];
+  }
+
+  /** Gets the global with the given name, or null if there is none. */
+  public Object getGlobal(String name) {
+    Integer slot = mSlots.get(name);
+    if (slot == null) return null;
+
+    return mGlobals[slot];
+  }
+
+  Object[] getGlobals() {
+    return mGlobals;
+  }
+
+  private final String[] mNames;
+  private final Object[] mGlobals;
+  private final Map<String, Integer> mSlots;
+}
@@ -0,0 +1,357 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Simplifies a function before it is resolved and compiled. It:
+ *
+ * - Replaces uses of a var that is initialized with a string and never
+ *   assigned with the string itself.
+ * - Removes the arm of an if that can't be taken when the condition is a
+ *   string, so no branch is compiled at all.
+ * - Flattens sequences nested in sequences.
+ * - Removes expressions whose values are discarded when evaluating them has
+ *   no effect, and vars that nothing uses.
+ *
+ * A var is only replaced where the NameResolver would resolve to it, so it
+ * has to be declared directly in the function's body, before the use, and
+ * be the only var with its name there. Uses inside nested functions are left
+ * alone. An arm isn't removed if it declares a var that is used outside of
+ * it, since then the use would resolve to something else.
+ */
+public class Simplifier extends ExprRewriter {
+  public static FunctionExpr simplify(FunctionExpr function) {
+    return (FunctionExpr)new Simplifier().rewrite(function);
+  }
+
+  @Override
+  public void visit(FunctionExpr expr, Void dummy) {
+    Map<String, StringExpr> outerConstants = mConstants;
+    Set<String> outerCandidates = mCandidates;
+    Expr outerBody = mBody;
+
+    // Find the vars that could be replaced with their values.
+    Map<String, Integer> declarations = new HashMap<String, Integer>();
+    countDeclarations(expr.getBody(), declarations);
+    Set<String> used = new HashSet<String>();
+    Set<String> assigned = new HashSet<String>();
+    collectNames(expr.getBody(), used, assigned);
+
+    mConstants = new HashMap<String, StringExpr>();
+    mCandidates = new HashSet<String>();
+    for (Map.Entry<String, Integer> entry : declarations.entrySet()) {
+      String name = entry.getKey();
+      if ((entry.getValue() == 1) && !assigned.contains(name) &&
+          !expr.getParameters().contains(name)) {
+        mCandidates.add(name);
+      }
+    }
+
+    mBody = expr.getBody();
+    Expr body = rewrite(expr.getBody());
+
+    // Now that uses have been replaced and arms removed, see which vars
+    // are left unused.
+    used.clear();
+    assigned.clear();
+    collectNames(body, used, assigned);
+    body = new UnusedVarRemover(used).rewrite(body);
+
+    mConstants = outerConstants;
+    mCandidates = outerCandidates;
+    mBody = outerBody;
+
+    result(new FunctionExpr(expr.getParameters(), body));
+  }
+
+  @Override
+  public void visit(IfExpr expr, Void dummy) {
+    Expr condition = rewrite(expr.getCondition());
+
+    // The condition may be a sequence that ends in a string.
+    List<Expr> before = new ArrayList<Expr>();
+    Expr last = condition;
+    if (condition instanceof SequenceExpr) {
+      List<Expr> exprs = ((SequenceExpr)condition).getExpressions();
+      if (!exprs.isEmpty()) {
+        before.addAll(exprs.subList(0, exprs.size() - 1));
+        last = exprs.get(exprs.size() - 1);
+      }
+    }
+
+    if (last instanceof StringExpr) {
+      boolean truthy = !((StringExpr)last).getValue().equals("");
+      Expr taken = truthy ? expr.getThenArm() : expr.getElseArm();
+      Expr dropped = truthy ? expr.getElseArm() : expr.getThenArm();
+
+      if (!declaresUsedVar(dropped)) {
+        before.add(rewrite(taken));
+        result(simplifySequence(before));
+        return;
+      }
+    }
+
+    result(new IfExpr(condition, rewrite(expr.getThenArm()),
+        rewrite(expr.getElseArm())));
+  }
+
+  @Override
+  public void visit(NameExpr expr, Void dummy) {
+    StringExpr constant = mConstants.get(expr.getName().getIdentifier());
+    if (constant != null) {
+      result(new StringExpr(constant.getValue()));
+    } else {
+      super.visit(expr, dummy);
+    }
+  }
+
+  @Override
+  public void visit(SequenceExpr expr, Void dummy) {
+    boolean isBody = (expr == mBody);
+
+    List<Expr> exprs = new ArrayList<Expr>();
+    for (Expr inner : expr.getExpressions()) {
+      Expr rewritten = rewrite(inner);
+      exprs.add(rewritten);
+
+      // A var in the body of the function is always initialized before
+      // anything after it runs.
+      if (isBody && (rewritten instanceof VarExpr)) {
+        VarExpr var = (VarExpr)rewritten;
+        String name = var.getName().getIdentifier();
+        if (mCandidates.contains(name) &&
+            (var.getValue() instanceof StringExpr)) {
+          mConstants.put(name, (StringExpr)var.getValue());
+        }
+      }
+    }
+
+    result(simplifySequence(exprs));
+  }
+
+  private Simplifier() {
+  }
+
+  /**
+   * Builds a sequence out of the given expressions, flattening any nested
+   * sequences and removing the discarded ones that don't do anything.
+   */
+  private static Expr simplifySequence(List<Expr> exprs) {
+    List<Expr> flattened = new ArrayList<Expr>();
+    for (Expr expr : exprs) {
+      if (expr instanceof SequenceExpr) {
+        flattened.addAll(((SequenceExpr)expr).getExpressions());
+      } else {
+        flattened.add(expr);
+      }
+    }
+
+    List<Expr> simplified = new ArrayList<Expr>();
+    for (int i = 0; i < flattened.size(); i++) {
+      Expr expr = flattened.get(i);
+      if ((i < flattened.size() - 1) && isPure(expr)) continue;
+      simplified.add(expr);
+    }
+
+    if (simplified.size() == 1) return simplified.get(0);
+    return new SequenceExpr(simplified);
+  }
+
+  /**
+   * Returns true if evaluating the expression has no effect besides
+   * producing its value. Vars aren't, since they declare a name.
+   */
+  private static boolean isPure(Expr expr) {
+    if (expr instanceof FunctionExpr) return true;
+    if (expr instanceof NameExpr) return true;
+    if (expr instanceof StringExpr) return true;
+
+    if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      return isPure(ifExpr.getCondition()) && isPure(ifExpr.getThenArm()) &&
+          isPure(ifExpr.getElseArm());
+    }
+
+    if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        if (!isPure(inner)) return false;
+      }
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns true if the expression declares a var whose name is used
+   * somewhere else in the function's body.
+   */
+  private boolean declaresUsedVar(Expr expr) {
+    Map<String, Integer> declared = new HashMap<String, Integer>();
+    countDeclarations(expr, declared);
+    if (declared.isEmpty()) return false;
+
+    Map<String, Integer> inside = new HashMap<String, Integer>();
+    Map<String, Integer> everywhere = new HashMap<String, Integer>();
+    countUses(expr, inside);
+    countUses(mBody, everywhere);
+
+    for (String name : declared.keySet()) {
+      if (count(everywhere, name) > count(inside, name)) return true;
+    }
+
+    return false;
+  }
+
+  private static int count(Map<String, Integer> counts, String name) {
+    Integer count = counts.get(name);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Counts the vars declared in the expression for each name. Vars inside
+   * nested functions are skipped.
+   */
+  private static void countDeclarations(Expr expr,
+      Map<String, Integer> counts) {
+    if (expr instanceof AssignExpr) {
+      countDeclarations(((AssignExpr)expr).getValue(), counts);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      countDeclarations(call.getFunction(), counts);
+      for (Expr arg : call.getArgs()) countDeclarations(arg, counts);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      countDeclarations(ifExpr.getCondition(), counts);
+      countDeclarations(ifExpr.getThenArm(), counts);
+      countDeclarations(ifExpr.getElseArm(), counts);
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        countDeclarations(inner, counts);
+      }
+    } else if (expr instanceof VarExpr) {
+      VarExpr var = (VarExpr)expr;
+      String name = var.getName().getIdentifier();
+      counts.put(name, count(counts, name) + 1);
+      countDeclarations(var.getValue(), counts);
+    }
+  }
+
+  /**
+   * Counts the names and assignments in the expression for each name,
+   * including those inside nested functions.
+   */
+  private static void countUses(Expr expr, Map<String, Integer> counts) {
+    if (expr instanceof AssignExpr) {
+      AssignExpr assign = (AssignExpr)expr;
+      String name = assign.getName().getIdentifier();
+      counts.put(name, count(counts, name) + 1);
+      countUses(assign.getValue(), counts);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      countUses(call.getFunction(), counts);
+      for (Expr arg : call.getArgs()) countUses(arg, counts);
+    } else if (expr instanceof FunctionExpr) {
+      countUses(((FunctionExpr)expr).getBody(), counts);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      countUses(ifExpr.getCondition(), counts);
+      countUses(ifExpr.getThenArm(), counts);
+      countUses(ifExpr.getElseArm(), counts);
+    } else if (expr instanceof NameExpr) {
+      String name = ((NameExpr)expr).getName().getIdentifier();
+      counts.put(name, count(counts, name) + 1);
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        countUses(inner, counts);
+      }
+    } else if (expr instanceof VarExpr) {
+      countUses(((VarExpr)expr).getValue(), counts);
+    }
+  }
+
+  /**
+   * Adds the names that the expression uses and assigns, including inside
+   * nested functions.
+   */
+  private static void collectNames(Expr expr, Set<String> used,
+      Set<String> assigned) {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    countUses(expr, counts);
+    used.addAll(counts.keySet());
+    collectAssigned(expr, assigned);
+  }
+
+  private static void collectAssigned(Expr expr, Set<String> assigned) {
+    if (expr instanceof AssignExpr) {
+      AssignExpr assign = (AssignExpr)expr;
+      assigned.add(assign.getName().getIdentifier());
+      collectAssigned(assign.getValue(), assigned);
+    } else if (expr instanceof CallExpr) {
+      CallExpr call = (CallExpr)expr;
+      collectAssigned(call.getFunction(), assigned);
+      for (Expr arg : call.getArgs()) collectAssigned(arg, assigned);
+    } else if (expr instanceof FunctionExpr) {
+      collectAssigned(((FunctionExpr)expr).getBody(), assigned);
+    } else if (expr instanceof IfExpr) {
+      IfExpr ifExpr = (IfExpr)expr;
+      collectAssigned(ifExpr.getCondition(), assigned);
+      collectAssigned(ifExpr.getThenArm(), assigned);
+      collectAssigned(ifExpr.getElseArm(), assigned);
+    } else if (expr instanceof SequenceExpr) {
+      for (Expr inner : ((SequenceExpr)expr).getExpressions()) {
+        collectAssigned(inner, assigned);
+      }
+    } else if (expr instanceof VarExpr) {
+      collectAssigned(((VarExpr)expr).getValue(), assigned);
+    }
+  }
+
+  /**
+   * Removes the vars in a function's body whose values are discarded and
+   * whose names aren't used anywhere. If the initializer does something,
+   * it's kept without the var. Nested functions have already been
+   * simplified, so they are left as they are.
+   */
+  private static class UnusedVarRemover extends ExprRewriter {
+    UnusedVarRemover(Set<String> used) {
+      mUsed = used;
+    }
+
+    @Override
+    public void visit(FunctionExpr expr, Void dummy) {
+      result(expr);
+    }
+
+    @Override
+    public void visit(SequenceExpr expr, Void dummy) {
+      List<Expr> exprs = rewrite(expr.getExpressions());
+      for (int i = 0; i < exprs.size() - 1; i++) {
+        if (!(exprs.get(i) instanceof VarExpr)) continue;
+
+        VarExpr var = (VarExpr)exprs.get(i);
+        if (!mUsed.contains(var.getName().getIdentifier())) {
+          exprs.set(i, var.getValue());
+        }
+      }
+
+      result(simplifySequence(exprs));
+    }
+
+    private final Set<String> mUsed;
+  }
+
+  // The vars in the function being simplified that can be replaced by their
+  // values, and the ones that have been declared so far.
+  private Set<String> mCandidates;
+  private Map<String, StringExpr> mConstants =
+      new HashMap<String, StringExpr>();
+
+  // The original body of the function being simplified.
+  private Expr mBody;
+}
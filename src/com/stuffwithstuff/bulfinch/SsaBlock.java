@@ -0,0 +1,105 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A basic block in a function's SSA form: a run of instructions that always
+ * execute together, followed by an exit that either jumps to another block,
+ * branches to one of two blocks, or returns. Any PHIs come first.
+ */
+public class SsaBlock {
+  public enum Exit {
+    JUMP,
+    BRANCH,
+    RETURN
+  }
+
+  public SsaBlock(SsaBlock dominator) {
+    mDominator = dominator;
+  }
+
+  /**
+   * Gets the block's immediate dominator: the closest block that control
+   * always passes through to get here. This is null for the entry block.
+   */
+  public SsaBlock getDominator() {
+    return mDominator;
+  }
+
+  public boolean isDominatedBy(SsaBlock block) {
+    for (SsaBlock dominator = this; dominator != null;
+        dominator = dominator.mDominator) {
+      if (dominator == block) return true;
+    }
+
+    return false;
+  }
+
+  public List<SsaValue> getValues() {
+    return mValues;
+  }
+
+  public SsaValue add(SsaValue value) {
+    value.setBlock(this);
+    mValues.add(value);
+    return value;
+  }
+
+  /** The blocks that can jump here, in the same order as PHI operands. */
+  public List<SsaBlock> getPredecessors() {
+    return mPredecessors;
+  }
+
+  public Exit getExit() {
+    return mExit;
+  }
+
+  /** The returned value or the branch condition. */
+  public SsaValue getExitValue() {
+    return mExitValue;
+  }
+
+  public void setExitValue(SsaValue value) {
+    mExitValue = value;
+  }
+
+  /** Where a JUMP goes, or where a BRANCH goes if the condition is true. */
+  public SsaBlock getTarget() {
+    return mTarget;
+  }
+
+  /** Where a BRANCH goes if the condition is false. */
+  public SsaBlock getElseTarget() {
+    return mElseTarget;
+  }
+
+  public void jump(SsaBlock target) {
+    mExit = Exit.JUMP;
+    mTarget = target;
+    target.mPredecessors.add(this);
+  }
+
+  public void branch(SsaValue condition, SsaBlock thenTarget,
+      SsaBlock elseTarget) {
+    mExit = Exit.BRANCH;
+    mExitValue = condition;
+    mTarget = thenTarget;
+    mElseTarget = elseTarget;
+    thenTarget.mPredecessors.add(this);
+    elseTarget.mPredecessors.add(this);
+  }
+
+  public void ret(SsaValue value) {
+    mExit = Exit.RETURN;
+    mExitValue = value;
+  }
+
+  private final SsaBlock mDominator;
+  private final List<SsaValue> mValues = new ArrayList<SsaValue>();
+  private final List<SsaBlock> mPredecessors = new ArrayList<SsaBlock>();
+  private Exit mExit;
+  private SsaValue mExitValue;
+  private SsaBlock mTarget;
+  private SsaBlock mElseTarget;
+}
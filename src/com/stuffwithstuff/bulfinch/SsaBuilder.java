@@ -0,0 +1,191 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a resolved function into SSA form. Since Bulfinch has no loops,
+ * the only control flow is if expressions. Each one ends the current block
+ * with a branch to a block for each arm, and both arms jump to a new block
+ * where they join. A PHI is created there for the if's value and for every
+ * local that the arms left with different values.
+ *
+ * While building, the current value of each local is tracked directly, so
+ * reading a local just uses whatever value was last stored in it. Vars and
+ * assignments still produce COPY instructions so that they have a value of
+ * their own. SsaOptimizer removes those.
+ *
+ * Only functions whose locals all live in registers can be built. A local
+ * that a closure captures can change behind the function's back.
+ */
+public class SsaBuilder implements ExprVisitor<Void> {
+  /**
+   * Returns true if the function can be converted to SSA form when being
+   * compiled with the given environment model.
+   */
+  public static boolean canBuild(FunctionExpr function, boolean linked) {
+    return !linked && !function.isNonEscaping() &&
+        function.getCapturedLocals().isEmpty();
+  }
+
+  public static SsaFunction build(FunctionExpr function) {
+    Expect.arg(canBuild(function, false), "Can't build function.");
+
+    SsaBuilder builder = new SsaBuilder(function);
+    function.getBody().accept(builder, null);
+    builder.mBlock.ret(builder.mResult);
+
+    return new SsaFunction(function, builder.mBlocks);
+  }
+
+  @Override
+  public void visit(AssignExpr expr, Void dummy) {
+    expr.getValue().accept(this, dummy);
+
+    if (expr.getName().isLocal()) {
+      mResult = add(new SsaValue(SsaValue.Kind.COPY, mResult));
+      mLocals[expr.getName().getLocalIndex()] = mResult;
+    } else if (expr.getName().isUpvar()) {
+      add(new SsaValue(SsaValue.Kind.STORE_UPVAR, mResult)
+          .setIndex(expr.getName().getUpvar().getSlot()));
+    } else {
+      // Like the compiler, assigning to a global does nothing.
+      mResult = mUndefined;
+    }
+  }
+
+  @Override
+  public void visit(CallExpr expr, Void dummy) {
+    List<SsaValue> operands = new ArrayList<SsaValue>();
+
+    expr.getFunction().accept(this, dummy);
+    operands.add(mResult);
+
+    for (Expr arg : expr.getArgs()) {
+      arg.accept(this, dummy);
+      operands.add(mResult);
+    }
+
+    mResult = add(new SsaValue(SsaValue.Kind.CALL,
+        operands.toArray(new SsaValue[operands.size()])).setPayload(expr));
+  }
+
+  @Override
+  public void visit(FunctionExpr expr, Void dummy) {
+    mResult = add(new SsaValue(SsaValue.Kind.CLOSURE).setPayload(expr));
+  }
+
+  @Override
+  public void visit(IfExpr expr, Void dummy) {
+    expr.getCondition().accept(this, dummy);
+    SsaValue condition = mResult;
+    SsaBlock before = mBlock;
+    SsaValue[] locals = mLocals.clone();
+
+    // The blocks are created in the order their code will be laid out: the
+    // then arm and everything in it, then the else arm, then the join.
+    SsaBlock thenBlock = startBlock(before);
+    expr.getThenArm().accept(this, dummy);
+    SsaValue thenResult = mResult;
+    SsaValue[] thenLocals = mLocals;
+    SsaBlock thenEnd = mBlock;
+
+    mLocals = locals;
+    SsaBlock elseBlock = startBlock(before);
+    expr.getElseArm().accept(this, dummy);
+    SsaValue elseResult = mResult;
+    SsaValue[] elseLocals = mLocals;
+    SsaBlock elseEnd = mBlock;
+
+    before.branch(condition, thenBlock, elseBlock);
+
+    SsaBlock join = startBlock(before);
+    thenEnd.jump(join);
+    elseEnd.jump(join);
+
+    mResult = merge(thenResult, elseResult);
+    for (int i = 0; i < mLocals.length; i++) {
+      mLocals[i] = merge(thenLocals[i], elseLocals[i]);
+    }
+  }
+
+  @Override
+  public void visit(NameExpr expr, Void dummy) {
+    Name name = expr.getName();
+    if (name.isLocal()) {
+      mResult = mLocals[name.getLocalIndex()];
+    } else if (name.isUpvar()) {
+      UpvarRef upvar = name.getUpvar();
+      SsaValue.Kind kind = upvar.isByValue() ?
+          SsaValue.Kind.LOAD_VALUE_UPVAR : SsaValue.Kind.LOAD_UPVAR;
+      mResult = add(new SsaValue(kind).setIndex(upvar.getSlot()));
+    } else {
+      mResult = add(new SsaValue(SsaValue.Kind.LOAD_GLOBAL)
+          .setPayload(name.getIdentifier()));
+    }
+  }
+
+  @Override
+  public void visit(SequenceExpr expr, Void dummy) {
+    mResult = mUndefined;
+    for (Expr inner : expr.getExpressions()) inner.accept(this, dummy);
+  }
+
+  @Override
+  public void visit(StringExpr expr, Void dummy) {
+    mResult = add(new SsaValue(SsaValue.Kind.CONSTANT)
+        .setPayload(expr.getValue()));
+  }
+
+  @Override
+  public void visit(VarExpr expr, Void dummy) {
+    expr.getValue().accept(this, dummy);
+    mResult = add(new SsaValue(SsaValue.Kind.COPY, mResult));
+    mLocals[expr.getName().getLocalIndex()] = mResult;
+  }
+
+  private SsaBuilder(FunctionExpr function) {
+    mBlock = startBlock(null);
+
+    // Until a local is initialized, it has no value. Parameters come in
+    // with one.
+    mUndefined = add(new SsaValue(SsaValue.Kind.UNDEFINED));
+    mResult = mUndefined;
+    mLocals = new SsaValue[function.getLocals().size()];
+    for (int i = 0; i < mLocals.length; i++) {
+      if (i < function.getParameters().size()) {
+        mLocals[i] = add(new SsaValue(SsaValue.Kind.PARAM).setIndex(i));
+      } else {
+        mLocals[i] = mUndefined;
+      }
+    }
+  }
+
+  private SsaValue add(SsaValue value) {
+    return mBlock.add(value);
+  }
+
+  private SsaBlock startBlock(SsaBlock dominator) {
+    mBlock = new SsaBlock(dominator);
+    mBlocks.add(mBlock);
+    return mBlock;
+  }
+
+  /**
+   * Gets the value that the arms of an if leave in the join block, adding a
+   * PHI if they are different.
+   */
+  private SsaValue merge(SsaValue thenValue, SsaValue elseValue) {
+    if (thenValue == elseValue) return thenValue;
+
+    return add(new SsaValue(SsaValue.Kind.PHI, thenValue, elseValue));
+  }
+
+  private final List<SsaBlock> mBlocks = new ArrayList<SsaBlock>();
+  private final SsaValue mUndefined;
+  private SsaBlock mBlock;
+  private SsaValue[] mLocals;
+
+  // The value of the last visited expression.
+  private SsaValue mResult;
+}
@@ -0,0 +1,26 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.List;
+
+/**
+ * A function in SSA form. The blocks are in an order where every block
+ * comes after all of the blocks that can jump to it, which is also the order
+ * their code is laid out in. See SsaBuilder.
+ */
+public class SsaFunction {
+  public SsaFunction(FunctionExpr expr, List<SsaBlock> blocks) {
+    mExpr = expr;
+    mBlocks = blocks;
+  }
+
+  public FunctionExpr getExpr() {
+    return mExpr;
+  }
+
+  public List<SsaBlock> getBlocks() {
+    return mBlocks;
+  }
+
+  private final FunctionExpr mExpr;
+  private final List<SsaBlock> mBlocks;
+}
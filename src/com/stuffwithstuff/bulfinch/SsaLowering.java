@@ -0,0 +1,427 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Allocates registers for a function in SSA form and compiles it to
+ * bytecode.
+ *
+ * The blocks are laid out in order, and since Bulfinch only jumps forward,
+ * each value is live from where it is defined to where it is last used. A
+ * PHI is live from the end of the first block that jumps to it, where it is
+ * first written, since the blocks after that could still jump to it. Each
+ * value then gets the lowest register that no live value is using.
+ * Parameters stay in the registers the caller passed them in.
+ *
+ * A call needs its function and arguments in the registers at the top of
+ * the frame, since the callee's registers start right after the function.
+ * They are moved into registers above everything live at the call. The
+ * peephole optimizer usually folds those moves into the ops that produce the
+ * values. Constants, globals and upvars captured by value are as cheap to
+ * load again as they are to move, so those are loaded right into the call's
+ * registers instead of being kept alive until the call.
+ */
+public class SsaLowering {
+  public static Function lower(SsaFunction function, String name,
+      CompilerOptions options) {
+    SsaLowering lowering = new SsaLowering(function, options);
+    lowering.computeLifetimes();
+    lowering.allocateRegisters();
+    lowering.emit(name);
+    return lowering.mCompiled;
+  }
+
+  private SsaLowering(SsaFunction function, CompilerOptions options) {
+    mFunction = function;
+    mOptions = options;
+  }
+
+  /**
+   * Numbers the positions in the function and finds where each value starts
+   * and stops being live. Each instruction has two positions: one where it
+   * reads its operands and one where it writes its value. That way, an
+   * instruction can write to the register of an operand it last uses.
+   */
+  private void computeLifetimes() {
+    int position = 0;
+    for (SsaBlock block : mFunction.getBlocks()) {
+      for (SsaValue value : block.getValues()) {
+        if (value.getKind() == SsaValue.Kind.PHI) continue;
+
+        if (value.getKind() == SsaValue.Kind.PARAM) {
+          define(value, 0);
+        } else {
+          define(value, position + 1);
+        }
+
+        for (SsaValue operand : value.getOperands()) {
+          if ((value.getKind() == SsaValue.Kind.CALL) &&
+              isRematerialized(operand)) {
+            continue;
+          }
+
+          use(operand, position);
+          mUsed.add(operand);
+        }
+        mPositions.put(value, position);
+        position += 2;
+      }
+
+      // The exit reads its value and writes the successor's PHIs.
+      mBlockEnds.put(block, position);
+      if (block.getExitValue() != null) {
+        use(block.getExitValue(), position);
+        mUsed.add(block.getExitValue());
+      }
+      position += 2;
+    }
+
+    for (SsaBlock block : mFunction.getBlocks()) {
+      for (SsaValue phi : block.getValues()) {
+        if (phi.getKind() != SsaValue.Kind.PHI) continue;
+
+        int start = Integer.MAX_VALUE;
+        for (int i = 0; i < phi.getOperands().size(); i++) {
+          int end = mBlockEnds.get(block.getPredecessors().get(i));
+          start = Math.min(start, end);
+          use(phi.getOperands().get(i), end);
+          mUsed.add(phi.getOperands().get(i));
+        }
+
+        define(phi, start);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the value is loaded again everywhere a call uses it.
+   */
+  private boolean isRematerialized(SsaValue value) {
+    switch (value.getKind()) {
+    case CONSTANT:
+    case LOAD_GLOBAL:
+    case LOAD_VALUE_UPVAR:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private void define(SsaValue value, int position) {
+    mValues.add(value);
+    mStarts.put(value, position);
+    if (!mEnds.containsKey(value)) mEnds.put(value, position);
+  }
+
+  private void use(SsaValue value, int position) {
+    Integer end = mEnds.get(value);
+    if ((end == null) || (end < position)) mEnds.put(value, position);
+  }
+
+  /**
+   * Gives each value the lowest register that isn't in use by any value
+   * whose lifetime overlaps it.
+   */
+  private void allocateRegisters() {
+    // Walk the values in the order they become live. Parameters come first,
+    // in order, so that they get the registers they are passed in.
+    List<SsaValue> values = new ArrayList<SsaValue>(mValues);
+    Collections.sort(values, new Comparator<SsaValue>() {
+      @Override
+      public int compare(SsaValue a, SsaValue b) {
+        int compare = Integer.compare(mStarts.get(a), mStarts.get(b));
+        if (compare != 0) return compare;
+
+        return Integer.compare(a.getIndex(), b.getIndex());
+      }
+    });
+
+    // The end of the lifetime of the value currently in each register.
+    int[] registerEnds = new int[values.size()];
+    Arrays.fill(registerEnds, -1);
+
+    for (SsaValue value : values) {
+      int register = 0;
+      if (value.getKind() == SsaValue.Kind.PARAM) {
+        register = value.getIndex();
+      } else {
+        while (registerEnds[register] >= mStarts.get(value)) register++;
+      }
+
+      value.setRegister(register);
+      registerEnds[register] = mEnds.get(value);
+      mNumRegisters = Math.max(mNumRegisters, register + 1);
+    }
+  }
+
+  private void emit(String name) {
+    FunctionExpr expr = mFunction.getExpr();
+
+    List<String> upvarNames = new ArrayList<String>();
+    for (UpvarRef upvar : expr.getUpvars()) upvarNames.add(upvar.getName());
+
+    mCompiled = new Function(name, expr.getParameters(), upvarNames);
+    mCompiled.setNumUpvars(upvarNames.size());
+    mCompiled.ensureRegisters(mNumRegisters);
+
+    // The jumps and branches that need to be patched once we know where
+    // their targets are. Branches map to the block they end.
+    Map<Integer, SsaBlock> jumps = new HashMap<Integer, SsaBlock>();
+    Map<Integer, SsaBlock> branches = new HashMap<Integer, SsaBlock>();
+    Map<SsaBlock, Integer> starts = new IdentityHashMap<SsaBlock, Integer>();
+
+    List<SsaBlock> blocks = mFunction.getBlocks();
+    for (int i = 0; i < blocks.size(); i++) {
+      SsaBlock block = blocks.get(i);
+      SsaBlock next = (i < blocks.size() - 1) ? blocks.get(i + 1) : null;
+      starts.put(block, mCompiled.getCodeSize());
+
+      boolean tailCalled = false;
+      for (SsaValue value : block.getValues()) {
+        tailCalled = emit(value, block);
+      }
+      if (tailCalled) continue;
+
+      switch (block.getExit()) {
+      case JUMP:
+        // Write the values the PHIs will have if we came from this block.
+        SsaBlock target = block.getTarget();
+        int predecessor = target.getPredecessors().indexOf(block);
+        for (SsaValue phi : target.getValues()) {
+          if (phi.getKind() != SsaValue.Kind.PHI) continue;
+          move(phi.getOperands().get(predecessor), phi.getRegister());
+        }
+
+        if (target != next) {
+          jumps.put(mCompiled.write(-1, -1, -1, -1), target);
+        }
+        break;
+
+      case BRANCH:
+        Expect.state(block.getTarget() == next,
+            "The then arm should come right after the branch.");
+        branches.put(mCompiled.write(-1, -1, -1, -1), block);
+        break;
+
+      case RETURN:
+        write(Op.RETURN, block.getExitValue().getRegister(), -1);
+        break;
+      }
+    }
+
+    // -1 because the IP has already been advanced one.
+    for (Map.Entry<Integer, SsaBlock> jump : jumps.entrySet()) {
+      int index = jump.getKey();
+      int offset = starts.get(jump.getValue()) - index - 1;
+      mCompiled.patch(index, Op.JUMP, offset, -1, -1);
+    }
+
+    for (Map.Entry<Integer, SsaBlock> branch : branches.entrySet()) {
+      int index = branch.getKey();
+      SsaBlock block = branch.getValue();
+      int offset = starts.get(block.getElseTarget()) - index - 1;
+      mCompiled.patch(index, Op.JUMP_IF_FALSE,
+          block.getExitValue().getRegister(), offset, -1);
+    }
+  }
+
+  /**
+   * Writes the code for a value. Returns true if it was a call that the
+   * function returns the result of, which is compiled to a TAIL_CALL.
+   */
+  private boolean emit(SsaValue value, SsaBlock block) {
+    switch (value.getKind()) {
+    case PARAM:
+    case UNDEFINED:
+    case PHI:
+      // Nothing to do.
+      return false;
+
+    case STORE_UPVAR:
+      write(Op.STORE_UPVAR, value.getIndex(),
+          value.getOperands().get(0).getRegister());
+      return false;
+
+    case CLOSURE:
+      emitClosure(value);
+      return false;
+
+    case CALL:
+      return emitCall(value, block);
+
+    default:
+      // Don't load a value that's only used by calls, since they load it
+      // themselves.
+      if (mUsed.contains(value)) emitLoad(value, value.getRegister());
+      return false;
+    }
+  }
+
+  private void emitLoad(SsaValue value, int dest) {
+    switch (value.getKind()) {
+    case CONSTANT:
+      write(Op.CONSTANT, addConstant(value.getPayload()), dest);
+      break;
+
+    case LOAD_GLOBAL:
+      write(Op.LOAD_GLOBAL, addConstant(value.getPayload()), dest);
+      break;
+
+    case LOAD_UPVAR:
+      write(Op.LOAD_UPVAR, value.getIndex(), dest);
+      break;
+
+    case LOAD_VALUE_UPVAR:
+      write(Op.LOAD_VALUE_UPVAR, value.getIndex(), dest);
+      break;
+
+    default:
+      throw new IllegalStateException("Unexpected " + value.getKind() + ".");
+    }
+  }
+
+  private void emitClosure(SsaValue value) {
+    FunctionExpr expr = (FunctionExpr)value.getPayload();
+    String name = mCompiled.getDebugName() + ":" +
+        mCompiled.getNumConstants();
+    Function function = Compiler.compileInnerFunction(expr, name, mOptions,
+        false, null);
+    write(Op.CLOSURE, mCompiled.addConstant(function), value.getRegister());
+
+    // A function that doesn't escape has no upvars of its own.
+    if (expr.isNonEscaping()) return;
+
+    // This function has no captured locals, so everything the closure
+    // captures comes from our upvars.
+    for (UpvarRef upvar : expr.getUpvars()) {
+      Expect.state(!upvar.isLocal(), "Function has a captured local.");
+      write(Op.ADD_OUTER_UPVAR, upvar.getIndex(), -1);
+    }
+  }
+
+  private boolean emitCall(SsaValue call, SsaBlock block) {
+    // Put the function and arguments above everything that's live. Keep
+    // them out of the result's register too, so that the function's
+    // register isn't live after the call and a LOAD_GLOBAL of it can be fused
+    // into the call.
+    int window = call.getRegister() + 1;
+    int position = mPositions.get(call);
+    for (SsaValue other : mValues) {
+      if ((mStarts.get(other) <= position) &&
+          (mEnds.get(other) >= position)) {
+        window = Math.max(window, other.getRegister() + 1);
+      }
+    }
+
+    List<SsaValue> operands = call.getOperands();
+    for (int i = 0; i < operands.size(); i++) {
+      if (isRematerialized(operands.get(i))) {
+        emitLoad(operands.get(i), window + i);
+      } else {
+        move(operands.get(i), window + i);
+      }
+    }
+    mCompiled.ensureRegisters(window + operands.size());
+
+    int numArgs = operands.size() - 1;
+    if (isTailCall(call, block)) {
+      write(Op.TAIL_CALL, window, numArgs);
+      return true;
+    }
+
+    mCompiled.write(Op.CALL, call.getRegister(), window, numArgs);
+    return false;
+  }
+
+  /**
+   * A call can replace this function's frame if it is the last thing in its
+   * block, and its result is returned either right away or by flowing
+   * through PHIs into a return.
+   */
+  private boolean isTailCall(SsaValue call, SsaBlock block) {
+    // A call that needs our frame to stick around can't replace it.
+    if (((CallExpr)call.getPayload()).keepsCallerFrame()) return false;
+
+    List<SsaValue> values = block.getValues();
+    if (values.get(values.size() - 1) != call) return false;
+
+    return isReturned(call, block);
+  }
+
+  private boolean isReturned(SsaValue value, SsaBlock block) {
+    switch (block.getExit()) {
+    case RETURN:
+      return block.getExitValue() == value;
+
+    case JUMP:
+      // The block we jump to can't do anything but pick PHI values before
+      // exiting.
+      SsaBlock target = block.getTarget();
+      int predecessor = target.getPredecessors().indexOf(block);
+      SsaValue passed = null;
+      for (SsaValue phi : target.getValues()) {
+        if (phi.getKind() != SsaValue.Kind.PHI) return false;
+        if (phi.getOperands().get(predecessor) == value) passed = phi;
+      }
+
+      if (passed == null) return false;
+      return isReturned(passed, target);
+
+    default:
+      return false;
+    }
+  }
+
+  private void move(SsaValue value, int register) {
+    // An undefined value can be whatever is in the register already.
+    if (value.getKind() == SsaValue.Kind.UNDEFINED) return;
+    if (value.getRegister() == register) return;
+
+    write(Op.MOVE, value.getRegister(), register);
+  }
+
+  private void write(int op, int a, int b) {
+    mCompiled.write(op, a, b, -1);
+  }
+
+  private int addConstant(Object value) {
+    ConstantTable table = mOptions.getConstantTable();
+    if (table != null) {
+      value = table.intern(value);
+    }
+
+    return mCompiled.addConstant(value);
+  }
+
+  private final SsaFunction mFunction;
+  private final CompilerOptions mOptions;
+  private Function mCompiled;
+  private int mNumRegisters;
+
+  // Every value that needs a register, and where its lifetime starts and
+  // ends.
+  private final List<SsaValue> mValues = new ArrayList<SsaValue>();
+  private final Map<SsaValue, Integer> mStarts =
+      new IdentityHashMap<SsaValue, Integer>();
+  private final Map<SsaValue, Integer> mEnds =
+      new IdentityHashMap<SsaValue, Integer>();
+
+  // The values that need to be in their registers. That excludes values that
+  // are only used by calls that load them again.
+  private final Set<SsaValue> mUsed = new HashSet<SsaValue>();
+
+  // Where each instruction reads its operands, and where each block exits.
+  private final Map<SsaValue, Integer> mPositions =
+      new IdentityHashMap<SsaValue, Integer>();
+  private final Map<SsaBlock, Integer> mBlockEnds =
+      new IdentityHashMap<SsaBlock, Integer>();
+}
@@ -0,0 +1,209 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimizes a function in SSA form. It:
+ *
+ * - Propagates copies, so that uses of a COPY use what it copies instead,
+ *   and removes PHIs whose operands are all the same value.
+ * - Numbers values so that a load or constant that is already available in
+ *   a dominating block is reused instead of loaded again. Globals, constants
+ *   and upvars captured by value never change. Other upvars can be changed
+ *   by storing to them or by calling anything, so a load of one is only
+ *   reused if neither has happened since.
+ * - Removes instructions whose values are never used and that have no side
+ *   effects.
+ */
+public class SsaOptimizer {
+  public static SsaFunction optimize(SsaFunction function) {
+    SsaOptimizer optimizer = new SsaOptimizer(function);
+    optimizer.propagateCopies();
+    optimizer.numberValues();
+    optimizer.removeDeadCode();
+    return function;
+  }
+
+  private SsaOptimizer(SsaFunction function) {
+    mFunction = function;
+  }
+
+  private void propagateCopies() {
+    for (SsaBlock block : mFunction.getBlocks()) {
+      for (SsaValue value : block.getValues()) {
+        switch (value.getKind()) {
+        case COPY:
+          value.replaceWith(value.getOperands().get(0));
+          break;
+
+        case PHI:
+          // The operands come from blocks earlier in the function, so they
+          // have already been resolved as much as they will be.
+          SsaValue first = value.getOperands().get(0).resolve();
+          boolean same = true;
+          for (SsaValue operand : value.getOperands()) {
+            if (operand.resolve() != first) same = false;
+          }
+          if (same) value.replaceWith(first);
+          break;
+
+        default:
+          break;
+        }
+      }
+    }
+
+    updateOperands();
+  }
+
+  /**
+   * Walks the blocks in order, tracking which loads are available in each
+   * one, and replaces loads that have already been done.
+   */
+  private void numberValues() {
+    // The loads that have been done, and the block each was done in. A load
+    // is only available in blocks dominated by that block.
+    Map<List<Object>, SsaValue> available =
+        new HashMap<List<Object>, SsaValue>();
+
+    // Each side effect gets a new memory version, so loads of upvars from
+    // different versions can't be shared.
+    Map<SsaBlock, Integer> endVersions =
+        new IdentityHashMap<SsaBlock, Integer>();
+    int nextVersion = 1;
+
+    for (SsaBlock block : mFunction.getBlocks()) {
+      // If all of the blocks that lead here leave memory the same, it's
+      // still that. Otherwise, it could be either, so it's a new version.
+      int version = 0;
+      Set<Integer> incoming = new HashSet<Integer>();
+      for (SsaBlock predecessor : block.getPredecessors()) {
+        incoming.add(endVersions.get(predecessor));
+      }
+      if (incoming.size() == 1) {
+        version = incoming.iterator().next();
+      } else if (incoming.size() > 1) {
+        version = nextVersion++;
+      }
+
+      for (SsaValue value : block.getValues()) {
+        if (value.hasSideEffects()) version = nextVersion++;
+
+        List<Object> key = getKey(value, version);
+        if (key == null) continue;
+
+        SsaValue existing = available.get(key);
+        if ((existing != null) &&
+            block.isDominatedBy(existing.getBlock())) {
+          value.replaceWith(existing);
+        } else if (value.getKind() == SsaValue.Kind.STORE_UPVAR) {
+          // Loading the upvar right after storing it gets the stored value.
+          // Stores have no value of their own, so the stored value stands in
+          // for the store when checking dominance.
+          available.put(key, value.getOperands().get(0));
+        } else {
+          available.put(key, value);
+        }
+      }
+
+      endVersions.put(block, version);
+    }
+
+    updateOperands();
+  }
+
+  /**
+   * Gets the key that identifies what a value loads, or null if it isn't a
+   * value that can be reused.
+   */
+  private List<Object> getKey(SsaValue value, int version) {
+    List<Object> key = new ArrayList<Object>();
+    switch (value.getKind()) {
+    case CONSTANT:
+    case LOAD_GLOBAL:
+      key.add(value.getKind());
+      key.add(value.getPayload());
+      return key;
+
+    case LOAD_VALUE_UPVAR:
+      key.add(value.getKind());
+      key.add(value.getIndex());
+      return key;
+
+    case LOAD_UPVAR:
+    case STORE_UPVAR:
+      key.add(SsaValue.Kind.LOAD_UPVAR);
+      key.add(value.getIndex());
+      key.add(version);
+      return key;
+
+    default:
+      return null;
+    }
+  }
+
+  private void removeDeadCode() {
+    // Start with everything that has to happen, and then find everything
+    // they use.
+    Set<SsaValue> live = new HashSet<SsaValue>();
+    List<SsaValue> work = new ArrayList<SsaValue>();
+    for (SsaBlock block : mFunction.getBlocks()) {
+      if (block.getExitValue() != null) work.add(block.getExitValue());
+
+      for (SsaValue value : block.getValues()) {
+        // Parameters are kept so that they stay in their registers.
+        if (value.hasSideEffects() ||
+            (value.getKind() == SsaValue.Kind.PARAM)) {
+          work.add(value);
+        }
+      }
+    }
+
+    while (!work.isEmpty()) {
+      SsaValue value = work.remove(work.size() - 1);
+      if (live.add(value)) work.addAll(value.getOperands());
+    }
+
+    for (SsaBlock block : mFunction.getBlocks()) {
+      Iterator<SsaValue> values = block.getValues().iterator();
+      while (values.hasNext()) {
+        if (!live.contains(values.next())) values.remove();
+      }
+    }
+  }
+
+  /**
+   * Changes every use of a replaced value to use its replacement, and
+   * removes the replaced values.
+   */
+  private void updateOperands() {
+    for (SsaBlock block : mFunction.getBlocks()) {
+      if (block.getExitValue() != null) {
+        block.setExitValue(block.getExitValue().resolve());
+      }
+
+      Iterator<SsaValue> values = block.getValues().iterator();
+      while (values.hasNext()) {
+        SsaValue value = values.next();
+        if (value.isReplaced()) {
+          values.remove();
+          continue;
+        }
+
+        List<SsaValue> operands = value.getOperands();
+        for (int i = 0; i < operands.size(); i++) {
+          operands.set(i, operands.get(i).resolve());
+        }
+      }
+    }
+  }
+
+  private final SsaFunction mFunction;
+}
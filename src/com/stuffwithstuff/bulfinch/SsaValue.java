@@ -0,0 +1,137 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An instruction in a function's SSA form, along with the value it produces.
+ * Every value is defined exactly once, and the operands of an instruction
+ * are the values it uses directly. Where control flow joins after an if, a
+ * PHI picks one of its operands based on which block control came from. See
+ * SsaBuilder.
+ */
+public class SsaValue {
+  public enum Kind {
+    /** One of the function's parameters. */
+    PARAM,
+    /** The value of a variable that hasn't been initialized yet. */
+    UNDEFINED,
+    CONSTANT,
+    LOAD_GLOBAL,
+    LOAD_UPVAR,
+    LOAD_VALUE_UPVAR,
+    STORE_UPVAR,
+    CLOSURE,
+    CALL,
+    /** Just its operand, like the value of a var or assignment. */
+    COPY,
+    PHI
+  }
+
+  public SsaValue(Kind kind, SsaValue... operands) {
+    mKind = kind;
+    mOperands = new ArrayList<SsaValue>(Arrays.asList(operands));
+  }
+
+  public Kind getKind() {
+    return mKind;
+  }
+
+  public List<SsaValue> getOperands() {
+    return mOperands;
+  }
+
+  public SsaBlock getBlock() {
+    return mBlock;
+  }
+
+  void setBlock(SsaBlock block) {
+    mBlock = block;
+  }
+
+  /**
+   * For CONSTANT, the constant. For LOAD_GLOBAL, the global's name. For
+   * CLOSURE, the FunctionExpr. For CALL, the CallExpr.
+   */
+  public Object getPayload() {
+    return mPayload;
+  }
+
+  /** For params, upvar loads and stores, the index of what is used. */
+  public int getIndex() {
+    return mIndex;
+  }
+
+  public SsaValue setPayload(Object payload) {
+    mPayload = payload;
+    return this;
+  }
+
+  public SsaValue setIndex(int index) {
+    mIndex = index;
+    return this;
+  }
+
+  /**
+   * True if the instruction has an effect besides producing its value, so
+   * it has to be kept even if the value is never used.
+   */
+  public boolean hasSideEffects() {
+    return (mKind == Kind.CALL) || (mKind == Kind.STORE_UPVAR);
+  }
+
+  /**
+   * Gets the value that has replaced this one, or this value if it hasn't
+   * been replaced.
+   */
+  public SsaValue resolve() {
+    SsaValue value = this;
+    while (value.mReplacement != null) value = value.mReplacement;
+    return value;
+  }
+
+  /**
+   * Marks this value as being the same as another one. Uses of it are
+   * changed to use the other value the next time the function's operands
+   * are updated.
+   */
+  public void replaceWith(SsaValue value) {
+    Expect.state(value.resolve() != this, "Can't replace a value with itself.");
+    mReplacement = value;
+  }
+
+  public boolean isReplaced() {
+    return mReplacement != null;
+  }
+
+  /** The register the value is in, once it has been allocated. */
+  public int getRegister() {
+    return mRegister;
+  }
+
+  public void setRegister(int register) {
+    mRegister = register;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(mKind);
+    if (mPayload != null) builder.append(" ").append(mPayload);
+    if (mIndex != -1) builder.append(" ").append(mIndex);
+    for (SsaValue operand : mOperands) {
+      builder.append(" v").append(System.identityHashCode(operand));
+    }
+
+    return builder.toString();
+  }
+
+  private final Kind mKind;
+  private final List<SsaValue> mOperands;
+  private SsaBlock mBlock;
+  private Object mPayload;
+  private int mIndex = -1;
+  private SsaValue mReplacement;
+  private int mRegister = -1;
+}
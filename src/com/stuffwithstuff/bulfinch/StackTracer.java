@@ -0,0 +1,37 @@
+package com.stuffwithstuff.bulfinch;
+
+import java.io.PrintStream;
+
+/**
+ * An ExecutionListener that prints each executed op followed by the VM's
+ * registers. A "|" marks where each call frame's window starts.
+ */
+public class StackTracer implements ExecutionListener {
+  public StackTracer() {
+    this(System.out);
+  }
+
+  public StackTracer(PrintStream out) {
+    mOut = out;
+  }
+
+  @Override
+  public void executed(VM vm, Function function, int ip, Op op) {
+    mOut.print(String.format("%-20s", op));
+
+    int j = 0;
+    for (int i = 0; i < vm.getStackSize(); i++) {
+      if ((j < vm.getNumFrames()) && (vm.getFrameStart(j) == i)) {
+        mOut.print(" | ");
+        j++;
+      } else {
+        mOut.print("   ");
+      }
+      mOut.print(String.format("%-5s", vm.getStackValue(i)));
+    }
+
+    mOut.println();
+  }
+
+  private final PrintStream mOut;
+}
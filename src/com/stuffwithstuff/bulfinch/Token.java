@@ -1,6 +1,33 @@
 package com.stuffwithstuff.bulfinch;
 
 public final class Token {
+  /**
+   * Gets the shared token for a type whose tokens have no text of their
+   * own.
+   */
+  public static Token get(TokenType type) {
+    Expect.arg(!hasText(type), "Type must not have text.");
+
+    return SHARED_TOKENS[type.ordinal()];
+  }
+
+  /**
+   * Returns true if tokens of the given type have text of their own: names,
+   * operators, keywords and strings.
+   */
+  public static boolean hasText(TokenType type) {
+    switch (type) {
+    case NAME:
+    case OPERATOR:
+    case KEYWORD:
+    case STRING:
+      return true;
+
+    default:
+      return false;
+    }
+  }
+
   public Token(final TokenType type) {
     mType = type;
     mStringValue = "";
@@ -46,6 +73,16 @@ public final class Token {
     }
   }
 
+  private static final Token[] SHARED_TOKENS;
+
+  static {
+    TokenType[] types = TokenType.values();
+    SHARED_TOKENS = new Token[types.length];
+    for (int i = 0; i < types.length; i++) {
+      SHARED_TOKENS[i] = new Token(types[i]);
+    }
+  }
+
   private final TokenType mType;
   private final String mStringValue;
 }
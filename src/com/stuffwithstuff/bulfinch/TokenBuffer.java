@@ -0,0 +1,65 @@
+package com.stuffwithstuff.bulfinch;
+
+/**
+ * A compact list of lexed tokens. Instead of a Token object for each one,
+ * it keeps parallel arrays of each token's type and where its text is in
+ * the source. The text is only turned into a string when asked for.
+ */
+public class TokenBuffer {
+  public TokenBuffer(CharSequence text) {
+    mText = text;
+
+    // Guess how many tokens there will be so that the arrays rarely need
+    // to grow. Most tokens, with the space after them, are a few characters
+    // long.
+    int capacity = Math.max(MIN_CAPACITY, text.length() / CHARS_PER_TOKEN);
+    mTypes = new int[capacity];
+    mStarts = new int[capacity];
+    mLengths = new int[capacity];
+  }
+
+  /** Gets the number of tokens in the buffer. */
+  public int size() {
+    return mSize;
+  }
+
+  public TokenType getType(int index) {
+    return TYPES[mTypes[index]];
+  }
+
+  /** Gets the text of the token. For strings, this excludes the quotes. */
+  public String getText(int index) {
+    int start = mStarts[index];
+    return mText.subSequence(start, start + mLengths[index]).toString();
+  }
+
+  /** Adds a token to the end of the buffer. */
+  public void add(TokenType type, int start, int length) {
+    if (mSize == mTypes.length) {
+      mTypes = grow(mTypes);
+      mStarts = grow(mStarts);
+      mLengths = grow(mLengths);
+    }
+
+    mTypes[mSize] = type.ordinal();
+    mStarts[mSize] = start;
+    mLengths[mSize] = length;
+    mSize++;
+  }
+
+  private static int[] grow(int[] array) {
+    int[] grown = new int[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static final TokenType[] TYPES = TokenType.values();
+  private static final int MIN_CAPACITY = 16;
+  private static final int CHARS_PER_TOKEN = 3;
+
+  private final CharSequence mText;
+  private int[] mTypes;
+  private int[] mStarts;
+  private int[] mLengths;
+  private int mSize = 0;
+}
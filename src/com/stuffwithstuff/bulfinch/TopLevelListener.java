@@ -0,0 +1,16 @@
+package com.stuffwithstuff.bulfinch;
+
+/**
+ * Receives each top-level function from a BulfinchParser as soon as it has
+ * been parsed. That lets a program be compiled a function at a time without
+ * keeping every function's AST around.
+ */
+public interface TopLevelListener {
+  /**
+   * Called after the parser has consumed a top-level function's closing
+   * brace.
+   * @param name     The name of the function.
+   * @param function The function's AST.
+   */
+  void parsed(String name, FunctionExpr function);
+}
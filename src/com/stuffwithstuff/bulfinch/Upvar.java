@@ -1,34 +1,33 @@
 package com.stuffwithstuff.bulfinch;
 
-import java.util.List;
-
 public class Upvar {
   public Upvar(int stackIndex) {
     mStackIndex = stackIndex;
   }
   
-  public Object get(List<Object> stack) {
+  public Object get(Object[] stack) {
     if (isOpen()) {
-      return stack.get(mStackIndex);
+      return stack[mStackIndex];
     } else {
       return mValue;
     }
   }
   
-  public void set(List<Object> stack, Object value) {
+  public void set(Object[] stack, Object value) {
     if (isOpen()) {
-      stack.set(mStackIndex, value);
+      stack[mStackIndex] = value;
     } else {
       mValue = value;
     }
   }
   
-  public void close(List<Object> stack) {
+  public void close(Object[] stack) {
     // Capture the value.
-    mValue = stack.get(mStackIndex);
+    mValue = stack[mStackIndex];
     
     // Detach from the stack.
     mStackIndex = -1;
+    mNext = null;
   }
   
   int getIndex() {
@@ -39,6 +38,20 @@ public class Upvar {
     return mStackIndex != -1;
   }
   
+  /**
+   * Gets the next open upvar in the VM's list of them. That list is linked
+   * through the upvars themselves and sorted from the highest stack index to
+   * the lowest.
+   */
+  Upvar getNext() {
+    return mNext;
+  }
+  
+  void setNext(Upvar next) {
+    mNext = next;
+  }
+  
   private int mStackIndex; // will be -1 if it's closed.
   private Object mValue; // only used when closed.
+  private Upvar mNext; // only used when open.
 }
@@ -6,9 +6,23 @@ package com.stuffwithstuff.bulfinch;
  */
 public class UpvarRef {
   public UpvarRef(String name, boolean isLocal, int index) {
+    this(name, isLocal, index, null);
+  }
+  
+  /**
+   * Creates an upvar that closes over the given upvar in the enclosing
+   * function.
+   */
+  public UpvarRef(String name, int index, UpvarRef enclosing) {
+    this(name, false, index, enclosing);
+  }
+  
+  private UpvarRef(String name, boolean isLocal, int index,
+      UpvarRef enclosing) {
     mName = name;
     mIsLocal = isLocal;
     mIndex = index;
+    mEnclosing = enclosing;
     mSlot = -1;
   }
   
@@ -46,8 +60,51 @@ public class UpvarRef {
     return mIndex;
   }
   
+  /**
+   * True if the variable is never assigned after it's initialized. Instead
+   * of sharing the variable, a closure can just copy its value. Every upvar
+   * in the chain from the function declaring the variable to the one using
+   * it agrees on this.
+   */
+  public boolean isByValue() {
+    if (mEnclosing != null) return mEnclosing.isByValue();
+    return mByValue;
+  }
+  
+  /**
+   * Gets the register of the variable this closes over in the function that
+   * declares it.
+   */
+  public int getDeclaredIndex() {
+    if (mEnclosing != null) return mEnclosing.getDeclaredIndex();
+    return mIndex;
+  }
+  
+  /** Gets the function that declares the variable this closes over. */
+  public FunctionExpr getOwner() {
+    if (mEnclosing != null) return mEnclosing.getOwner();
+    return mOwner;
+  }
+  
+  public void setOwner(FunctionExpr owner) {
+    Expect.state(mEnclosing == null,
+        "Only the upvar closing over the local knows its owner.");
+    
+    mOwner = owner;
+  }
+  
+  public void setByValue(boolean byValue) {
+    Expect.state(mEnclosing == null,
+        "Only the upvar closing over the local decides.");
+    
+    mByValue = byValue;
+  }
+  
   private final String mName;
   private final boolean mIsLocal;
   private final int mIndex;
+  private final UpvarRef mEnclosing;
   private int mSlot;
+  private boolean mByValue;
+  private FunctionExpr mOwner;
 }
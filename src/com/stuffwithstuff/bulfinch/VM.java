@@ -1,20 +1,52 @@
 package com.stuffwithstuff.bulfinch;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
+import java.util.Arrays;
 
 public class VM {
-  public VM(Map<String, Closure> functions) {
-    mFunctions = functions;
+  public VM(Program program) {
+    this(program, null);
   }
-  
+
+  /**
+   * Creates a new VM that will notify the given listener after each
+   * instruction it executes. If the listener is null, the VM runs untraced.
+   */
+  public VM(Program program, ExecutionListener listener) {
+    mProgram = program;
+    mListener = listener;
+  }
+
   public Object execute() {
     // Call main().
-    call(mFunctions.get("main"), 0, 0);
-    
-    return run();
+    Object main = mProgram.getGlobal("main");
+    if (!(main instanceof Closure)) {
+      throw new RuntimeException("Program has no main() function.");
+    }
+
+    call((Closure)main, 0, 0);
+
+    // There are two copies of the interpreter loop. Picking one here means
+    // the normal one doesn't have to check for a listener on every
+    // instruction.
+    if (mListener == null) return run();
+    return runTraced();
+  }
+
+  public int getStackSize() {
+    return mStackTop;
+  }
+
+  public Object getStackValue(int index) {
+    return mStack[index];
+  }
+
+  public int getNumFrames() {
+    return mNumFrames;
+  }
+
+  /** Gets the index of the first register of the given call frame. */
+  public int getFrameStart(int frame) {
+    return mFrameStarts[frame];
   }
 
   private void call(Closure closure, int firstArg, int numArgs) {
@@ -25,203 +57,549 @@ public class VM {
     // It will use those registers for its parameters. This assumes that in
     // the caller's frame, any registers *past* the arguments to this call are
     // unused and can be trashed by the callee.
-    
-    CallFrame frame = new CallFrame(closure, firstArg);
-    mFrames.push(frame);
-    
+
+    // Push the frame. The frame arrays only ever grow, so once the stack has
+    // been this deep before, calling doesn't allocate.
+    if (mNumFrames == mFrameClosures.length) {
+      int capacity = mNumFrames * 2;
+      mFrameClosures = Arrays.copyOf(mFrameClosures, capacity);
+      mFrameIps = Arrays.copyOf(mFrameIps, capacity);
+      mFrameStarts = Arrays.copyOf(mFrameStarts, capacity);
+      mFrameEnvironments = Arrays.copyOf(mFrameEnvironments, capacity);
+    }
+
+    mFrameClosures[mNumFrames] = closure;
+    mFrameIps[mNumFrames] = 0;
+    mFrameStarts[mNumFrames] = firstArg;
+    mFrameEnvironments[mNumFrames] = null;
+    mNumFrames++;
+
     // Allocate registers for the function.
-    while (mStack.size() < frame.stackStart + closure.getFunction().getNumRegisters()) {
-      mStack.add(null);
+    int top = firstArg + closure.getFunction().getNumRegisters();
+    if (top > mStack.length) {
+      mStack = Arrays.copyOf(mStack, Math.max(top, mStack.length * 2));
     }
+
+    if (top > mStackTop) mStackTop = top;
   }
-  
+
   private Object run() {
+    // Cache the current frame's state in locals. These need to be reloaded
+    // whenever we switch frames.
+    int frame = mNumFrames - 1;
+    Closure closure = mFrameClosures[frame];
+    Function function = closure.getFunction();
+    long[] code = function.getCode();
+    int ip = mFrameIps[frame];
+    int base = mFrameStarts[frame];
+    Object[] stack = mStack;
+    Object[] globals = mProgram.getGlobals();
+
     while (true) {
-      CallFrame frame = mFrames.peek();
-      Op op = frame.getFunction().getCode().get(frame.ip++);
-      
-      switch (op.opcode) {
-      case Op.CONSTANT: {
-        Object value = frame.getFunction().getConstant(op.a);
-        store(op.b, value);
-        trace("CONSTANT", op.a, op.b);
+      long op = code[ip++];
+
+      switch (Op.opcode(op)) {
+      case Op.CONSTANT:
+        stack[base + Op.b(op)] = function.getConstant(Op.a(op));
         break;
-      }
 
-      case Op.MOVE: {
-        store(op.b, load(op.a));
-        trace("MOVE", op.a, op.b);
+      case Op.MOVE:
+        stack[base + Op.b(op)] = stack[base + Op.a(op)];
         break;
-      }
 
-      case Op.CALL: {
-        Closure closure = (Closure)load(op.b);
-        call(closure, frame.stackStart + op.b + 1, op.c);
-        trace("CALL", op.a, op.b, op.c);
+      case Op.CALL:
+      case Op.RETURN_CALL:
+        mFrameIps[frame] = ip;
+        call((Closure)stack[base + Op.b(op)], base + Op.b(op) + 1, Op.c(op));
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = 0;
+        base = mFrameStarts[frame];
+        stack = mStack;
         break;
-      }
-      
-      case Op.RETURN: {
-        Object result = load(op.a);
 
-        mFrames.pop();
-        
-        if (mFrames.size() == 0) {
-          trace("RETURN", op.a);
+      case Op.CALL_GLOBAL:
+        mFrameIps[frame] = ip;
+        call((Closure)globals[Op.b(op)], base + Op.c(op) + 1, -1);
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = 0;
+        base = mFrameStarts[frame];
+        stack = mStack;
+        break;
+
+      case Op.TAIL_CALL:
+        tailCall(frame, (Closure)stack[base + Op.a(op)], base + Op.a(op) + 1,
+            Op.b(op));
+
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = 0;
+        stack = mStack;
+        break;
+
+      case Op.RETURN: {
+        Object result = stack[base + Op.a(op)];
+        if (returnFrom(result)) {
           return result;
         }
-        
-        CallFrame caller = mFrames.peek();
-
-        // Close an upvars for the frame.
-        for (int i = mOpenUpvars.size() - 1; i >= 0; i--) {
-          if (mOpenUpvars.get(i).getIndex() >= frame.stackStart) {
-            mOpenUpvars.get(i).close(mStack);
-            mOpenUpvars.remove(i);
-          }
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = mFrameIps[frame];
+        base = mFrameStarts[frame];
+        break;
+      }
+
+      case Op.CONSTANT_RETURN: {
+        Object result = function.getConstant(Op.a(op));
+        if (returnFrom(result)) {
+          return result;
         }
-        
-        // Discard the returning function's registers.
-        while (mStack.size() > caller.stackStart +
-            caller.getFunction().getNumRegisters()) {
-          mStack.remove(mStack.size() - 1);
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = mFrameIps[frame];
+        base = mFrameStarts[frame];
+        break;
+      }
+
+      case Op.JUMP:
+        ip += Op.a(op);
+        break;
+
+      case Op.JUMP_IF_FALSE:
+        if (!isTruthy(stack[base + Op.a(op)])) {
+          ip += Op.b(op);
         }
+        break;
 
-        // Store the result value in the register set by the caller's CALL
-        // instruction.
-        // - 1 because we've already advanced past the CALL.
-        int dest = caller.getFunction().getCode().get(caller.ip - 1).a;
-        int register = caller.stackStart + dest;
-        mStack.set(register, result);
+      case Op.LOAD_GLOBAL:
+        stack[base + Op.b(op)] = globals[Op.a(op)];
+        break;
 
-        trace("RETURN", op.a);
+      case Op.LOAD_UPVAR:
+        stack[base + Op.b(op)] = closure.getUpvar(Op.a(op)).get(stack);
+        break;
+
+      case Op.STORE_UPVAR:
+        closure.getUpvar(Op.a(op)).set(stack, stack[base + Op.b(op)]);
+        break;
+
+      case Op.LOAD_VALUE_UPVAR:
+        stack[base + Op.b(op)] = closure.getCapture(Op.a(op));
+        break;
+
+      case Op.LOAD_PARENT:
+        stack[base + Op.b(op)] = stack[mFrameStarts[frame - 1] + Op.a(op)];
+        break;
+
+      case Op.STORE_PARENT:
+        stack[mFrameStarts[frame - 1] + Op.a(op)] = stack[base + Op.b(op)];
+        break;
+
+      case Op.NEW_ENV: {
+        Environment parent = null;
+        if (Op.b(op) == 1) parent = (Environment)closure.getCapture(0);
+        mFrameEnvironments[frame] = new Environment(parent, Op.a(op));
         break;
       }
-      
-      case Op.JUMP: {
-        frame.ip += op.a;
-        trace("JUMP", op.a);
+
+      case Op.LOAD_ENV:
+        stack[base + Op.c(op)] = currentEnvironment(frame, closure)
+            .getAncestor(Op.a(op)).get(Op.b(op));
+        break;
+
+      case Op.STORE_ENV:
+        currentEnvironment(frame, closure).getAncestor(Op.a(op))
+            .set(Op.b(op), stack[base + Op.c(op)]);
+        break;
+
+      case Op.CLOSURE: {
+        Function inner = (Function)function.getConstant(Op.a(op));
+        stack[base + Op.b(op)] = createClosure(inner, closure, code, ip, base);
+
+        // Skip over the upvar pseudo-ops.
+        ip += inner.getNumUpvars();
         break;
       }
-      
-      case Op.JUMP_IF_FALSE: {
-        Object condition = load(op.a);
-        boolean truthy = false;
-        if (condition instanceof String) {
-          truthy = !condition.equals("");
-        }
-        
-        if (!truthy) {
-          frame.ip += op.b;
+
+      default:
+        throw new RuntimeException("Unknown opcode " + Op.opcode(op));
+      }
+    }
+  }
+
+  /**
+   * The same as run(), but notifies the listener after each instruction. Any
+   * change to the semantics of an op needs to be made in both loops.
+   */
+  private Object runTraced() {
+    // Cache the current frame's state in locals. These need to be reloaded
+    // whenever we switch frames.
+    int frame = mNumFrames - 1;
+    Closure closure = mFrameClosures[frame];
+    Function function = closure.getFunction();
+    long[] code = function.getCode();
+    int ip = mFrameIps[frame];
+    int base = mFrameStarts[frame];
+    Object[] stack = mStack;
+    Object[] globals = mProgram.getGlobals();
+
+    while (true) {
+      // Remember where the op came from, since executing it may change that.
+      Function opFunction = function;
+      int opIp = ip;
+      long op = code[ip++];
+
+      switch (Op.opcode(op)) {
+      case Op.CONSTANT:
+        stack[base + Op.b(op)] = function.getConstant(Op.a(op));
+        break;
+
+      case Op.MOVE:
+        stack[base + Op.b(op)] = stack[base + Op.a(op)];
+        break;
+
+      case Op.CALL:
+      case Op.RETURN_CALL:
+        mFrameIps[frame] = ip;
+        call((Closure)stack[base + Op.b(op)], base + Op.b(op) + 1, Op.c(op));
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = 0;
+        base = mFrameStarts[frame];
+        stack = mStack;
+        break;
+
+      case Op.CALL_GLOBAL:
+        mFrameIps[frame] = ip;
+        call((Closure)globals[Op.b(op)], base + Op.c(op) + 1, -1);
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = 0;
+        base = mFrameStarts[frame];
+        stack = mStack;
+        break;
+
+      case Op.TAIL_CALL:
+        tailCall(frame, (Closure)stack[base + Op.a(op)], base + Op.a(op) + 1,
+            Op.b(op));
+
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = 0;
+        stack = mStack;
+        break;
+
+      case Op.RETURN: {
+        Object result = stack[base + Op.a(op)];
+        if (returnFrom(result)) {
+          mListener.executed(this, opFunction, opIp, Op.decode(op));
+          return result;
         }
-        trace("JUMP_IF_FALSE", op.a, op.b);
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = mFrameIps[frame];
+        base = mFrameStarts[frame];
         break;
       }
-      
-      case Op.LOAD_GLOBAL: {
-        // TODO(bob): Right now, all globals are just functions.
-        String name = frame.getFunction().getConstant(op.a).toString();
-        Closure closure = mFunctions.get(name);
-        if (closure == null) throw new RuntimeException("Unknown global " + name);
-        
-        store(op.b, closure);
-        trace("LOAD_GLOBAL", op.a, op.b);
+
+      case Op.CONSTANT_RETURN: {
+        Object result = function.getConstant(Op.a(op));
+        if (returnFrom(result)) {
+          mListener.executed(this, opFunction, opIp, Op.decode(op));
+          return result;
+        }
+
+        frame = mNumFrames - 1;
+        closure = mFrameClosures[frame];
+        function = closure.getFunction();
+        code = function.getCode();
+        ip = mFrameIps[frame];
+        base = mFrameStarts[frame];
         break;
       }
 
-      case Op.LOAD_UPVAR: {
-        Upvar upvar = frame.closure.getUpvar(op.a);
-        store(op.b, upvar.get(mStack));
-        trace("LOAD_UPVAR", op.a, op.b);
+      case Op.JUMP:
+        ip += Op.a(op);
+        break;
+
+      case Op.JUMP_IF_FALSE:
+        if (!isTruthy(stack[base + Op.a(op)])) {
+          ip += Op.b(op);
+        }
         break;
-      }
 
-      case Op.STORE_UPVAR: {
-        Upvar upvar = frame.closure.getUpvar(op.a);
-        upvar.set(mStack, load(op.b));
-        trace("STORE_UPVAR", op.a, op.b);
+      case Op.LOAD_GLOBAL:
+        stack[base + Op.b(op)] = globals[Op.a(op)];
+        break;
+
+      case Op.LOAD_UPVAR:
+        stack[base + Op.b(op)] = closure.getUpvar(Op.a(op)).get(stack);
+        break;
+
+      case Op.STORE_UPVAR:
+        closure.getUpvar(Op.a(op)).set(stack, stack[base + Op.b(op)]);
+        break;
+
+      case Op.LOAD_VALUE_UPVAR:
+        stack[base + Op.b(op)] = closure.getCapture(Op.a(op));
+        break;
+
+      case Op.LOAD_PARENT:
+        stack[base + Op.b(op)] = stack[mFrameStarts[frame - 1] + Op.a(op)];
+        break;
+
+      case Op.STORE_PARENT:
+        stack[mFrameStarts[frame - 1] + Op.a(op)] = stack[base + Op.b(op)];
+        break;
+
+      case Op.NEW_ENV: {
+        Environment parent = null;
+        if (Op.b(op) == 1) parent = (Environment)closure.getCapture(0);
+        mFrameEnvironments[frame] = new Environment(parent, Op.a(op));
         break;
       }
-      
+
+      case Op.LOAD_ENV:
+        stack[base + Op.c(op)] = currentEnvironment(frame, closure)
+            .getAncestor(Op.a(op)).get(Op.b(op));
+        break;
+
+      case Op.STORE_ENV:
+        currentEnvironment(frame, closure).getAncestor(Op.a(op))
+            .set(Op.b(op), stack[base + Op.c(op)]);
+        break;
+
       case Op.CLOSURE: {
-        Function function = (Function)frame.getFunction().getConstant(op.a);
-        Closure closure = new Closure(function);
-        
-        // Capture the upvars.
-        for (int i = 0; i < function.getNumUpvars(); i++) {
-          Op upvarOp = frame.getFunction().getCode().get(frame.ip++);
-          if (upvarOp.opcode == Op.ADD_UPVAR) {
-            closure.addUpvar(captureUpvar(frame.stackStart + upvarOp.a));
-          } else if (upvarOp.opcode == Op.ADD_OUTER_UPVAR) {
-            closure.addUpvar(frame.closure.getUpvar(upvarOp.a));
-          } else {
-            Expect.state(false,
-                "Should have ADD_UPVAR or ADD_OUTER_UPVAR op for each upvar.");
-          }
-        }
-        
-        store(op.b, closure);
-        trace("CLOSURE", op.a, op.b);
+        Function inner = (Function)function.getConstant(Op.a(op));
+        stack[base + Op.b(op)] = createClosure(inner, closure, code, ip, base);
+
+        // Skip over the upvar pseudo-ops.
+        ip += inner.getNumUpvars();
         break;
       }
-      
+
       default:
-        throw new RuntimeException("Unknown opcode " + op.opcode);
+        throw new RuntimeException("Unknown opcode " + Op.opcode(op));
       }
+
+      mListener.executed(this, opFunction, opIp, Op.decode(op));
     }
   }
-  
-  private Object load(int register) {
-    return mStack.get(mFrames.peek().stackStart + register);
-  }
 
-  private Object store(int register, Object value) {
-    return mStack.set(mFrames.peek().stackStart + register, value);
+  /**
+   * Replaces the function running in the given frame with a call to the
+   * given closure. The arguments are moved down to the start of the frame,
+   * so the callee gets the frame's register window instead of a new one.
+   */
+  private void tailCall(int frame, Closure closure, int firstArg,
+      int numArgs) {
+    int base = mFrameStarts[frame];
+    int oldTop = base + mFrameClosures[frame].getFunction().getNumRegisters();
+
+    // Anything the current function captured needs to be closed before its
+    // registers get reused.
+    closeUpvars(base);
+
+    System.arraycopy(mStack, firstArg, mStack, base, numArgs);
+
+    // Clear the rest of the old registers so that they don't keep anything
+    // alive.
+    Arrays.fill(mStack, base + numArgs, oldTop, null);
+
+    mFrameClosures[frame] = closure;
+    mFrameEnvironments[frame] = null;
+
+    int top = base + closure.getFunction().getNumRegisters();
+    if (top > mStack.length) {
+      mStack = Arrays.copyOf(mStack, Math.max(top, mStack.length * 2));
+    }
+
+    if (top > mStackTop) mStackTop = top;
   }
-  
-  private Upvar captureUpvar(int stackIndex) {
-    // See if we already have an open upvar for that variable.
-    for (Upvar upvar : mOpenUpvars) {
-      if (upvar.getIndex() == stackIndex) return upvar;
+
+  /**
+   * Pops the current frame and passes its result back to the caller. If the
+   * caller made the call using RETURN_CALL, it returns the result right away
+   * too, and so on.
+   * @return true if that was the last frame and execution is done.
+   */
+  private boolean returnFrom(Object result) {
+    while (true) {
+      if (returnOne(result)) return true;
+
+      int caller = mNumFrames - 1;
+      long[] code = mFrameClosures[caller].getFunction().getCode();
+      if (Op.opcode(code[mFrameIps[caller] - 1]) != Op.RETURN_CALL) {
+        return false;
+      }
     }
-    
-    // Not closed over already, so create it.
-    Upvar upvar = new Upvar(stackIndex);
-    mOpenUpvars.add(upvar);
-    return upvar;
   }
 
-  private void trace(String op, int a, int b, int c) {
-    trace(op + "(" + a + ", " + b + ", " + c + ")");
+  /**
+   * Pops the current frame and passes its result back to the caller.
+   * @return true if that was the last frame and execution is done.
+   */
+  private boolean returnOne(Object result) {
+    mNumFrames--;
+    int stackStart = mFrameStarts[mNumFrames];
+    mFrameClosures[mNumFrames] = null;
+    mFrameEnvironments[mNumFrames] = null;
+
+    if (mNumFrames == 0) return true;
+
+    int caller = mNumFrames - 1;
+    Function callerFunction = mFrameClosures[caller].getFunction();
+
+    // Close the upvars for the frame.
+    closeUpvars(stackStart);
+
+    // Discard the returning function's registers. Clear them so that the
+    // stack doesn't keep anything they refer to alive.
+    int top = mFrameStarts[caller] + callerFunction.getNumRegisters();
+    if (top < mStackTop) {
+      Arrays.fill(mStack, top, mStackTop, null);
+      mStackTop = top;
+    }
+
+    // Store the result value in the register set by the caller's CALL,
+    // CALL_GLOBAL or RETURN_CALL instruction.
+    // - 1 because we've already advanced past the CALL.
+    int dest = Op.a(callerFunction.getCode()[mFrameIps[caller] - 1]);
+    mStack[mFrameStarts[caller] + dest] = result;
+
+    return false;
   }
 
-  private void trace(String op, int a, int b) {
-    trace(op + "(" + a + ", " + b + ")");
+  private boolean isTruthy(Object value) {
+    if (value instanceof String) {
+      return !value.equals("");
+    }
+
+    return false;
   }
 
-  private void trace(String op, int a) {
-    trace(op + "(" + a + ")");
+  /**
+   * Gets the environment that the given frame's variables are looked up in.
+   * That's the frame's own environment if it created one, or else the one
+   * its closure links to.
+   */
+  private Environment currentEnvironment(int frame, Closure closure) {
+    Environment environment = mFrameEnvironments[frame];
+    if (environment != null) return environment;
+
+    return (Environment)closure.getCapture(0);
   }
-  
-  private void trace(String op) {
-    System.out.print(String.format("%-20s", op));
-    
-    int j = 0;
-    for (int i = 0; i < mStack.size(); i++) {
-      if ((j < mFrames.size()) && (mFrames.get(j).stackStart == i)) {
-        System.out.print(" | ");
-        j++;
+
+  /**
+   * Creates a closure for the given function. The ADD_UPVAR,
+   * ADD_VALUE_UPVAR and ADD_OUTER_UPVAR ops describing what it captures
+   * start at ip.
+   */
+  private Closure createClosure(Function function, Closure enclosing,
+      long[] code, int ip, int base) {
+    // Closures that don't capture anything are all alike, so share one.
+    if (function.getNumUpvars() == 0) return function.getSharedClosure();
+
+    Closure closure = Closure.create(function);
+
+    // Capture the upvars.
+    for (int i = 0; i < function.getNumUpvars(); i++) {
+      long upvarOp = code[ip + i];
+      if (Op.opcode(upvarOp) == Op.ADD_UPVAR) {
+        closure.setCapture(i, captureUpvar(base + Op.a(upvarOp)));
+      } else if (Op.opcode(upvarOp) == Op.ADD_VALUE_UPVAR) {
+        closure.setCapture(i, mStack[base + Op.a(upvarOp)]);
+      } else if (Op.opcode(upvarOp) == Op.ADD_OUTER_UPVAR) {
+        closure.setCapture(i, enclosing.getCapture(Op.a(upvarOp)));
+      } else if (Op.opcode(upvarOp) == Op.ADD_ENV) {
+        closure.setCapture(i, currentEnvironment(mNumFrames - 1, enclosing));
       } else {
-        System.out.print("   ");
+        Expect.state(false, "Should have an upvar op for each upvar.");
       }
-      System.out.print(String.format("%-5s", mStack.get(i)));
     }
-    
-    System.out.println();
-  }
-  
-  private final Map<String, Closure> mFunctions;
-  private final List<Object> mStack = new ArrayList<Object>();
-  private final Stack<CallFrame> mFrames = new Stack<CallFrame>();
-  private final List<Upvar> mOpenUpvars = new ArrayList<Upvar>();
+
+    return closure;
+  }
+
+  /** Closes all open upvars at or above the given stack index. */
+  private void closeUpvars(int stackStart) {
+    // The list is sorted, so they're all at the front of it.
+    while ((mOpenUpvars != null) && (mOpenUpvars.getIndex() >= stackStart)) {
+      Upvar upvar = mOpenUpvars;
+      mOpenUpvars = upvar.getNext();
+      upvar.close(mStack);
+    }
+  }
+
+  private Upvar captureUpvar(int stackIndex) {
+    // See if we already have an open upvar for that variable. Since the list
+    // is sorted and closures usually capture from the top frame, this only
+    // has to look at the first few upvars.
+    Upvar previous = null;
+    Upvar upvar = mOpenUpvars;
+    while ((upvar != null) && (upvar.getIndex() > stackIndex)) {
+      previous = upvar;
+      upvar = upvar.getNext();
+    }
+
+    if ((upvar != null) && (upvar.getIndex() == stackIndex)) return upvar;
+
+    // Not closed over already, so create it and link it in where it goes.
+    Upvar created = new Upvar(stackIndex);
+    created.setNext(upvar);
+
+    if (previous == null) {
+      mOpenUpvars = created;
+    } else {
+      previous.setNext(created);
+    }
+
+    return created;
+  }
+
+  private static final int INITIAL_STACK_SIZE = 256;
+  private static final int INITIAL_FRAMES = 64;
+
+  private final Program mProgram;
+  private final ExecutionListener mListener;
+  private Object[] mStack = new Object[INITIAL_STACK_SIZE];
+  private int mStackTop = 0;
+
+  // The call frames. Each frame is stored across these parallel arrays at
+  // the same index. The instruction pointer for the current frame is only
+  // written back to mFrameIps when it calls another function.
+  private Closure[] mFrameClosures = new Closure[INITIAL_FRAMES];
+  private int[] mFrameIps = new int[INITIAL_FRAMES];
+  private int[] mFrameStarts = new int[INITIAL_FRAMES];
+  // Only set when a frame creates its own environment. See EnvironmentModel.
+  private Environment[] mFrameEnvironments = new Environment[INITIAL_FRAMES];
+  private int mNumFrames = 0;
+
+  // The head of the list of open upvars, sorted by stack index from highest
+  // to lowest.
+  private Upvar mOpenUpvars = null;
 }
@@ -0,0 +1,16 @@
+# Variables that are never assigned are copied into closures, through any
+# number of intervening functions.
+# expect: b
+fn pick(a, b) {
+  b
+}
+
+fn main() {
+  var a = "a"
+  var b = "b"
+  fn() {
+    fn() {
+      pick(a, b)
+    }()
+  }()
+}
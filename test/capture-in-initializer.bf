@@ -0,0 +1,13 @@
+# A closure created in a variable's own initializer sees the variable once
+# it has been initialized.
+# expect: done
+fn main() {
+  var count = fn(n) {
+    if n {
+      count("")
+    } else {
+      "done"
+    }
+  }
+  count("again")
+}
@@ -0,0 +1,25 @@
+# An if whose condition is a string, or a var initialized with one, only
+# compiles the arm that can be taken.
+# expect: on
+fn call(f) {
+  f()
+}
+
+fn main() {
+  var debug = ""
+  var feature = "yes"
+  var unused = "unused"
+  if debug {
+    "debug"
+  } else {
+    var label = "off"
+    if feature {
+      label = "on"
+    } else {
+      missing-global
+    }
+    call(fn() {
+      label
+    })
+  }
+}
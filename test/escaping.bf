@@ -0,0 +1,15 @@
+# A local function that is passed somewhere else still captures its
+# variables.
+# expect: a
+fn call(f) {
+  f()
+}
+
+fn main() {
+  var a = "a"
+  var get = fn() {
+    a
+  }
+  get()
+  call(get)
+}
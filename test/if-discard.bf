@@ -0,0 +1,9 @@
+# expect: done
+fn main() {
+  if "" {
+    "then"
+  } else {
+    "else"
+  }
+  "done"
+}
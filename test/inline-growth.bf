@@ -0,0 +1,121 @@
+# Inlining is transitive, but only up to a limit, so a chain of small
+# functions that each call the next twice doesn't blow up. The chain is
+# never run, since only compiling it matters.
+# expect: x
+
+fn a0() {
+  "x"
+}
+
+fn a1() {
+  a0()
+  a0()
+}
+
+fn a2() {
+  a1()
+  a1()
+}
+
+fn a3() {
+  a2()
+  a2()
+}
+
+fn a4() {
+  a3()
+  a3()
+}
+
+fn a5() {
+  a4()
+  a4()
+}
+
+fn a6() {
+  a5()
+  a5()
+}
+
+fn a7() {
+  a6()
+  a6()
+}
+
+fn a8() {
+  a7()
+  a7()
+}
+
+fn a9() {
+  a8()
+  a8()
+}
+
+fn a10() {
+  a9()
+  a9()
+}
+
+fn a11() {
+  a10()
+  a10()
+}
+
+fn a12() {
+  a11()
+  a11()
+}
+
+fn a13() {
+  a12()
+  a12()
+}
+
+fn a14() {
+  a13()
+  a13()
+}
+
+fn a15() {
+  a14()
+  a14()
+}
+
+fn a16() {
+  a15()
+  a15()
+}
+
+fn a17() {
+  a16()
+  a16()
+}
+
+fn a18() {
+  a17()
+  a17()
+}
+
+fn a19() {
+  a18()
+  a18()
+}
+
+fn a20() {
+  a19()
+  a19()
+}
+
+fn a21() {
+  a20()
+  a20()
+}
+
+fn main() {
+  if "" {
+    a21()
+  } else {
+    "x"
+  }
+}
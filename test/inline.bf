@@ -0,0 +1,47 @@
+# Small functions are inlined into their callers, unless they are recursive
+# or the caller has a local that hides a global they use.
+# expect: d
+
+fn second(a, b) {
+  b
+}
+
+fn forward(a, b) {
+  second(a, b)
+}
+
+fn rename(a) {
+  var b = a
+  b
+}
+
+fn recurse(a) {
+  if a {
+    recurse("")
+  } else {
+    "d"
+  }
+}
+
+fn value() {
+  "c"
+}
+
+fn get() {
+  value()
+}
+
+fn main() {
+  var b = forward("a", "b")
+  var value = b
+  if get() {
+    value = recurse(value)
+  } else {
+    value = "unreached"
+  }
+  if rename(value) {
+    forward(b, value)
+  } else {
+    "unreached"
+  }
+}
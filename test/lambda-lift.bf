@@ -0,0 +1,24 @@
+# Local functions that only use variables that never change can be lifted
+# out. Run the tests with --lambda-lifting to exercise this.
+# expect: c
+fn pick(a, b) {
+  b
+}
+
+fn main() {
+  var a = "a"
+  var b = "b"
+  var first = fn(x) {
+    pick(b, x)
+  }
+  var second = fn(x, y) {
+    var c = "c"
+    pick(first(a), pick(y, c))
+  }
+  var changes = "before"
+  var third = fn() {
+    changes
+  }
+  changes = "after"
+  second(third(), first(b))
+}
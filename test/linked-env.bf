@@ -0,0 +1,26 @@
+# Variables shared between nested closures, including ones that skip a
+# function that doesn't capture anything itself, see each other's writes.
+# expect: c
+fn make(a) {
+  var b = "b"
+  var set = fn(value) {
+    b = value
+  }
+  var middle = fn() {
+    var inner = fn() {
+      a = b
+      b
+    }
+    inner
+  }
+  set("c")
+  var get = middle()
+  get()
+  set("d")
+  a
+}
+
+fn main() {
+  var result = make("a")
+  result
+}
@@ -0,0 +1,23 @@
+# Closures with more upvars than fit in fields store them in an array.
+# expect: e
+fn pick(a, b, c, d, e) {
+  e
+}
+
+fn make() {
+  var a = "a"
+  var b = "b"
+  var c = "c"
+  var d = "d"
+  var e = "x"
+  fn() {
+    e = "e"
+    fn() {
+      pick(a, b, c, d, e)
+    }
+  }
+}
+
+fn main() {
+  make()()()
+}
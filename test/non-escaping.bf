@@ -0,0 +1,20 @@
+# Local functions that are only called directly read and write the caller's
+# variables in place.
+# expect: changed
+fn pick(a, b) {
+  b
+}
+
+fn main() {
+  var a = "a"
+  var b = "b"
+  var set = fn(value) {
+    b = value
+    a
+  }
+  var get = fn() {
+    pick(a, b)
+  }
+  set("changed")
+  get()
+}
@@ -0,0 +1,44 @@
+# Locals that are done being used can give their registers to later ones,
+# but not while a closure or a later read still needs them. A var in an if
+# arm that is read after the if can't reuse an earlier local's register, or
+# the read would see that local's value when the arm isn't taken.
+# expect: a
+fn id(value) {
+  value
+}
+
+fn skipped(c, secret) {
+  if c {
+    var a = "y"
+  } else {
+    "z"
+  }
+  if c {
+    a
+  } else {
+    a
+  }
+}
+
+fn main() {
+  var a = "a"
+  var get = fn() {
+    a
+  }
+  var b = id("b")
+  var c = id(b)
+  var d = id(c)
+  if d {
+    var f = "f"
+    id(f)
+  } else {
+    var g = "g"
+    id(g)
+  }
+  var h = id(d)
+  if skipped("", "secret") {
+    "unreached"
+  } else {
+    get()
+  }
+}
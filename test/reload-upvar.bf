@@ -0,0 +1,21 @@
+# Reading an upvar again after a call or an assignment that could change it
+# sees the new value, even when nothing else changed in between.
+# expect: c
+fn main() {
+  var a = "a"
+  var set = fn(value) {
+    a = value
+  }
+  var check = fn() {
+    var first = a
+    set("")
+    var second = a
+    if second {
+      first
+    } else {
+      a = "c"
+    }
+    a
+  }
+  check()
+}
@@ -0,0 +1,18 @@
+# Calls whose result is stored in a variable and then returned. When more
+# than one of these is on the stack, returning has to unwind all of them.
+# expect: inner
+fn outer(f) {
+  var result = f()
+  result
+}
+
+fn main() {
+  var result = outer(fn() {
+    var inner = fn() {
+      "inner"
+    }
+    var value = inner()
+    value
+  })
+  result
+}
@@ -0,0 +1,14 @@
+# Functions that capture nothing share a single closure, which must still
+# work when created more than once.
+# expect: b
+fn make() {
+  fn(a, b) {
+    b
+  }
+}
+
+fn main() {
+  var first = make()
+  var second = make()
+  first("a", second("a", "b"))
+}
@@ -0,0 +1,11 @@
+# A local function that doesn't use any of the caller's variables can be
+# tail called, since it never reads the caller's frame.
+# expect: done
+
+fn main() {
+  var finish = fn(a) {
+    "done"
+  }
+  var unused = "x"
+  finish(unused)
+}
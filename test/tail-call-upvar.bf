@@ -0,0 +1,12 @@
+# Make sure a tail call closes the caller's upvars before reusing its frame.
+# expect: a
+fn call(f, ignored) {
+  f()
+}
+
+fn main() {
+  var a = "a"
+  call(fn() {
+    a
+  }, "b")
+}
@@ -0,0 +1,17 @@
+# expect: b
+fn second(a, b) {
+  b
+}
+
+fn pick(flag) {
+  "ignored"
+  if flag {
+    second("a", "b")
+  } else {
+    second("b", "a")
+  }
+}
+
+fn main() {
+  pick("yes")
+}